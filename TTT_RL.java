@@ -8,28 +8,86 @@ import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.event.*;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 public class TTT_RL extends JFrame {
 
+    /** Q-table file loaded at startup and written by Save / on close (and by headless training). */
+    static final String QTABLE_FILE = "ttt_qtable.bin";
+    /** Default output of {@code java TTT_RL freeze}: the compiled greedy policy. */
+    static final String POLICY_FILE = "ttt_policy.bin";
+    /** Default output of {@code java TTT_RL sweep}: the best configuration's table, kept apart from QTABLE_FILE unless --install. */
+    static final String SWEEP_FILE = "ttt_sweep_best.bin";
+    /** Java-serialized table written by earlier versions; converted to QTABLE_FILE on first load. */
+    static final String LEGACY_QTABLE_FILE = "ttt_qtable.ser";
+    /** Minimum interval between overlay/progress refreshes while training. */
+    static final long UI_REFRESH_MS = 100;
+    /** Interval of background checkpoints while training (-Dttt.checkpointMs). */
+    static final long CHECKPOINT_MS = Long.getLong("ttt.checkpointMs", 30_000);
+    /** Older copies kept as FILE.1 .. FILE.N when a checkpoint replaces FILE (-Dttt.checkpointKeep). */
+    static final int CHECKPOINT_KEEP = Integer.getInteger("ttt.checkpointKeep", 3);
+    /** Move engines the GUI can play with (see Agent). */
+    static final String ENGINE_TABLE = "Q-table", ENGINE_NET = "Q-network", ENGINE_MCTS = "MCTS";
+    /** Hidden units and mini-batch of the GUI's Q-network (see QNetAgent). */
+    static final int NET_HIDDEN = 64, NET_BATCH = 8;
+    /** Row budget of the hashed Q-table used on boards other than 3x3 (-Dttt.maxStates). */
+    static final int MAX_STATES = Integer.getInteger("ttt.maxStates", 1 << 18);
+
     // ---- GUI (board) ----
-    private final JButton[] cells = new JButton[9];
+    private JButton[] cells = new JButton[9];
+    private final JPanel grid = new JPanel(new GridLayout(3,3,6,6));
+    private final JComboBox<Geometry> boardCombo = new JComboBox<>(Geometry.PRESETS);
     private final JLabel status = new JLabel("Human (X) vs RL (O). Your move.");
     private final JButton resetBtn = new JButton("Reset");
     private final JButton trainBtn = new JButton("Train…");
+    private final JButton evaluateBtn = new JButton("Evaluate…");
     private final JButton saveBtn  = new JButton("Save Q");
     private final JButton loadBtn  = new JButton("Load Q");
 
     // New controls: training mode + side + stepping
-    private final JComboBox<String> trainModeCombo = new JComboBox<>(new String[]{
-            "Self-Play (strong)",
-            "Random X vs Agent O (legacy)"
-    });
+    private final JComboBox<TrainMode> trainModeCombo = new JComboBox<>(TrainMode.values());
     private final JCheckBox playAsOCheck = new JCheckBox("Human plays O");
+    private final JCheckBox symmetryCheck = new JCheckBox("Symmetry (D4)");
     private final JButton stepEpisodeBtn = new JButton("Step Episode");
+    private final JComboBox<String> engineCombo = new JComboBox<>(new String[]{ENGINE_TABLE, ENGINE_NET, ENGINE_MCTS});
+    private final JSpinner mctsMsSpinner = new JSpinner(new SpinnerNumberModel(250, 10, 10_000, 50));
 
     // Progress UI
     private final JProgressBar progressBar = new JProgressBar(0, 100);
@@ -39,13 +97,16 @@ public class TTT_RL extends JFrame {
     // ---- Q Overlay (3x3 labels for Q-values) ----
     private final JLabel overlayTitle = new JLabel("Q Overlay (state = current board)");
     private final JPanel qOverlayGrid = new JPanel(new GridLayout(3,3,4,4));
-    private final JLabel[] qCells = new JLabel[9];
+    private JLabel[] qCells = new JLabel[9];
     private final JButton showQCurrentBtn = new JButton("Show Q (Current Board)");
     private final JButton showQEmptyBtn   = new JButton("Show Q (Empty Board)");
-    private char[] overlayState = null; // null => current board; else a 9-char array state
+    private final JButton optimalityGapBtn = new JButton("Optimality Gap");
+    private char[] overlayState = null; // null => current board; else a board-sized state
 
     // ---- Game state ----
-    private final char[] board = new char[9]; // 'X','O',' '
+    private Geometry geom = Geometry.CLASSIC;
+    private char[] board = new char[9]; // 'X','O',' '
+    private long boardX, boardO;        // same position as bitboards
     private boolean gameOver = false;
 
     // Live play sides
@@ -53,8 +114,16 @@ public class TTT_RL extends JFrame {
     private char aiMark    = 'O';
     private char currentPlayer = 'X';
 
-    // RL Agent
+    // RL Agent (3x3), or the hashed-table agent while another board size is selected
     private final QLearningAgent agent = new QLearningAgent('O', 'X');
+    private CompiledPolicy policy; // agent's greedy moves, recompiled whenever its table changes
+    private final Checkpointer checkpointer = new Checkpointer(CHECKPOINT_KEEP);
+    private boolean closing;
+    private boolean loading; // a background loadQ() is running; the tables are not ours to save yet
+    private MnkAgent mnkAgent;
+    private QNetAgent netAgent; // built for the current board when the Q-network is first selected
+    private Mcts mcts;      // built for the current board and time budget when MCTS is selected
+    private int gameSerial; // bumped by resetGame so a search finishing late drops its move
 
     public TTT_RL() {
         super("Tic Tac Toe — Q-Learning (Q Overlay + Step Episodes)");
@@ -66,33 +135,30 @@ public class TTT_RL extends JFrame {
         top.add(status, BorderLayout.CENTER);
 
         JPanel leftControls = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 6));
+        leftControls.add(new JLabel("Board (RxCxK):"));
+        boardCombo.setEditable(true);
+        leftControls.add(boardCombo);
         leftControls.add(new JLabel("Train Mode:"));
         leftControls.add(trainModeCombo);
         leftControls.add(playAsOCheck);
+        leftControls.add(symmetryCheck);
         leftControls.add(stepEpisodeBtn);
+        leftControls.add(new JLabel("Engine:"));
+        leftControls.add(engineCombo);
+        leftControls.add(new JLabel("ms/move:"));
+        leftControls.add(mctsMsSpinner);
         top.add(leftControls, BorderLayout.WEST);
 
         JPanel rightControls = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 6));
         rightControls.add(resetBtn);
         rightControls.add(trainBtn);
+        rightControls.add(evaluateBtn);
         rightControls.add(saveBtn);
         rightControls.add(loadBtn);
         top.add(rightControls, BorderLayout.EAST);
 
         // ===== Board grid =====
-        JPanel grid = new JPanel(new GridLayout(3,3,6,6));
         grid.setBorder(BorderFactory.createEmptyBorder(10,10,10,10));
-        Font big = new Font(Font.SANS_SERIF, Font.BOLD, 42);
-        for (int i = 0; i < 9; i++) {
-            JButton b = new JButton("");
-            b.setFont(big);
-            b.setFocusPainted(false);
-            b.setBackground(Color.WHITE);
-            final int idx = i;
-            b.addActionListener(evt -> humanMove(idx));
-            cells[i] = b;
-            grid.add(b);
-        }
 
         // ===== Bottom: progress + overlay controls =====
         JPanel bottom = new JPanel(new BorderLayout(8,8));
@@ -102,19 +168,12 @@ public class TTT_RL extends JFrame {
         progressRow.add(progressBar, BorderLayout.CENTER);
         progressRow.add(liveOverlayDuringTrain, BorderLayout.EAST);
 
-        // Q overlay grid
-        for (int i = 0; i < 9; i++) {
-            JLabel ql = new JLabel("–", SwingConstants.CENTER);
-            ql.setOpaque(true);
-            ql.setBackground(new Color(245,245,245));
-            ql.setBorder(BorderFactory.createLineBorder(new Color(220,220,220)));
-            ql.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
-            qCells[i] = ql;
-            qOverlayGrid.add(ql);
-        }
+        // Board buttons + Q overlay grid
+        rebuildBoard();
         JPanel overlayControls = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 6));
         overlayControls.add(showQCurrentBtn);
         overlayControls.add(showQEmptyBtn);
+        overlayControls.add(optimalityGapBtn);
 
         JPanel overlayBlock = new JPanel(new BorderLayout(6,6));
         overlayBlock.setBorder(BorderFactory.createEmptyBorder(6,10,10,10));
@@ -137,8 +196,10 @@ public class TTT_RL extends JFrame {
         // ===== Events =====
         resetBtn.addActionListener(e -> { resetGame(); maybeAgentAutoOpen(); });
         trainBtn.addActionListener(e -> promptAndStartTraining());
+        evaluateBtn.addActionListener(e -> promptAndStartEvaluation());
         saveBtn.addActionListener(e -> saveQ());
-        loadBtn.addActionListener(e -> { loadQ(); updateStatusForTurn(); refreshOverlayForCurrentSelection(); });
+        boardCombo.addActionListener(e -> switchBoard());
+        loadBtn.addActionListener(e -> loadQ());
         playAsOCheck.addActionListener(e -> {
             humanMark = playAsOCheck.isSelected() ? 'O' : 'X';
             aiMark    = (humanMark == 'X') ? 'O' : 'X';
@@ -146,27 +207,46 @@ public class TTT_RL extends JFrame {
             maybeAgentAutoOpen();
             refreshOverlayForCurrentSelection();
         });
+        symmetryCheck.addActionListener(e -> {
+            agent.setCanonical(symmetryCheck.isSelected());
+            freezePolicy();
+            refreshOverlayForCurrentSelection();
+        });
         stepEpisodeBtn.addActionListener(e -> stepOneEpisode());
+        engineCombo.addActionListener(e -> { resetGame(); maybeAgentAutoOpen(); });
         showQCurrentBtn.addActionListener(e -> { overlayState = null; overlayTitle.setText("Q Overlay (state = current board)"); refreshOverlayForCurrentSelection(); });
-        showQEmptyBtn.addActionListener(e -> { overlayState = makeEmptyBoard(); overlayTitle.setText("Q Overlay (state = empty board)"); refreshOverlayForCurrentSelection(); });
+        optimalityGapBtn.addActionListener(e -> showOptimalityGap());
+        showQEmptyBtn.addActionListener(e -> { overlayState = makeEmptyBoard(geom.cells); overlayTitle.setText("Q Overlay (state = empty board)"); refreshOverlayForCurrentSelection(); });
 
         // ===== Finish window =====
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE); // exits once the final checkpoint is written
         setSize(640, 740);
         setLocationRelativeTo(null);
         setVisible(true);
 
-        // Try load existing Q-table
-        loadQ();
+        // Training telemetry over JMX (and as CSV with -Dttt.stats.csv=path)
+        try { agent.stats().startSampling(1000, System.getProperty("ttt.stats.csv")); }
+        catch (IOException ex) { System.err.println("Stats log unavailable: " + ex.getMessage()); }
+
+        // Local move service for other processes (-Dttt.serve=PORT), reading the published snapshots
+        Integer servePort = Integer.getInteger("ttt.serve");
+        if (servePort != null) {
+            try { InferenceServer.of(agent::snapshot).start(servePort); }
+            catch (IOException ex) { System.err.println("Move service unavailable: " + ex.getMessage()); }
+        }
 
         // Persist on close
         addWindowListener(new WindowAdapter() {
-            public void windowClosing(WindowEvent e) { saveQ(); }
+            public void windowClosing(WindowEvent e) { saveAndExit(); }
         });
 
         // Initialize overlay and status
+        freezePolicy();
         refreshOverlayForCurrentSelection();
         updateStatusForTurn();
+
+        // Load the saved Q-table in the background; the window is usable as soon as it is
+        loadQ();
     }
 
     // ========= Live Play =========
@@ -180,14 +260,77 @@ public class TTT_RL extends JFrame {
 
     private void agentMoveIfAITurn() {
         if (gameOver || currentPlayer != aiMark) return;
-        String state = stringify(board);
-        int action = agent.chooseAction(state, legalActions(board), 0.0); // pure exploit
+        if (ENGINE_MCTS.equals(engineCombo.getSelectedItem())) { searchAndMove(); return; }
+        int action;
+        if (netSelected()) {
+            action = net().chooseMove(boardX, boardO, ThreadLocalRandom.current());
+        } else if (mnkAgent != null) {
+            action = mnkAgent.chooseAction(boardX, boardO, 0.0);
+        } else {
+            action = policy.best(code((int) boardX, (int) boardO)); // pure exploit, no table access
+        }
         applyMove(action, aiMark);
         checkEndAndReport();
     }
 
+    /** Runs the MCTS search off the EDT and plays its move, unless the game was reset meanwhile. */
+    private void searchAndMove() {
+        final Mcts engine = mcts();
+        final long x = boardX, o = boardO;
+        final int serial = gameSerial;
+        status.setText("MCTS thinking…");
+        new SwingWorker<Integer, Void>() {
+            @Override protected Integer doInBackground() { return engine.chooseMove(x, o, ThreadLocalRandom.current()); }
+
+            @Override protected void done() {
+                if (serial != gameSerial || gameOver) return;
+                int action;
+                try { action = get(); }
+                catch (Exception ex) { System.err.println("Search failed: " + ex.getMessage()); return; }
+                progressLabel.setText(String.format("MCTS: %,d rollouts in %.0f ms", engine.lastRollouts(), engine.lastNanos() / 1e6));
+                applyMove(action, aiMark);
+                checkEndAndReport();
+            }
+        }.execute();
+    }
+
+    /** The search engine for the current board and time budget, rebuilt when either changes. */
+    private Mcts mcts() {
+        long ms = ((Number) mctsMsSpinner.getValue()).longValue();
+        if (mcts == null || !mcts.geometry().equals(geom) || mcts.moveMs() != ms) {
+            if (mcts != null) mcts.close();
+            mcts = new Mcts(geom, 0, ms, Runtime.getRuntime().availableProcessors());
+        }
+        return mcts;
+    }
+
+    private boolean netSelected() { return ENGINE_NET.equals(engineCombo.getSelectedItem()); }
+
+    /** The Q-network of the current board, loaded from its file the first time. */
+    private QNetAgent net() {
+        if (netAgent == null) {
+            netAgent = new QNetAgent(geom, NET_HIDDEN, NET_BATCH);
+            try { Checkpointer.loadNewest(geom.netFile(), CHECKPOINT_KEEP, netAgent::loadFrom); }
+            catch (Exception ex) { System.err.println("Q-network not loaded: " + ex.getMessage()); }
+        }
+        return netAgent;
+    }
+
+    /** The agent whose values the overlay shows: the selected engine. */
+    private Agent engine() {
+        if (ENGINE_MCTS.equals(engineCombo.getSelectedItem())) return mcts();
+        return learner();
+    }
+
+    /** The agent that Train and Step Episode teach: the Q-network if selected, else the board's table. */
+    private Learner learner() {
+        if (netSelected()) return net();
+        return (mnkAgent != null) ? mnkAgent : agent;
+    }
+
     private void applyMove(int idx, char p) {
         board[idx] = p;
+        if (p == 'X') boardX |= 1L << idx; else boardO |= 1L << idx;
         cells[idx].setText(String.valueOf(p));
         currentPlayer = (p == 'X') ? 'O' : 'X';
         updateStatusForTurn();
@@ -204,15 +347,15 @@ public class TTT_RL extends JFrame {
     }
 
     private boolean checkEndAndReport() {
-        Character winner = winnerOf(board);
-        if (winner != null) {
+        char winner = geom.winner(boardX, boardO);
+        if (winner != ' ') {
             gameOver = true;
             boolean humanWon = (winner == humanMark);
             status.setText((humanWon ? "Human (" : "RL (") + winner + ") wins!");
             highlightWin(winner);
             return true;
         }
-        if (isDraw(board)) {
+        if (geom.isDraw(boardX, boardO)) {
             gameOver = true;
             status.setText("Draw.");
             return true;
@@ -221,16 +364,19 @@ public class TTT_RL extends JFrame {
     }
 
     private void highlightWin(char p) {
-        for (int[] L : lines()) {
-            if (board[L[0]] == p && board[L[1]] == p && board[L[2]] == p) {
-                for (int i : L) cells[i].setBackground(new Color(220,255,220));
+        long m = (p == 'X') ? boardX : boardO;
+        for (long w : geom.winMasks) {
+            if ((m & w) == w) {
+                for (long b = w; b != 0; b &= b - 1) cells[Long.numberOfTrailingZeros(b)].setBackground(new Color(220,255,220));
                 break;
             }
         }
     }
 
     private void resetGame() {
+        gameSerial++;
         java.util.Arrays.fill(board, ' ');
+        boardX = 0; boardO = 0;
         for (JButton b : cells) { b.setText(""); b.setBackground(Color.WHITE); b.setToolTipText(null); }
         currentPlayer = 'X';
         gameOver = false;
@@ -244,63 +390,248 @@ public class TTT_RL extends JFrame {
         }
     }
 
+    // ========= Board size =========
+    /** (Re)creates the board buttons and overlay labels for the current geometry. */
+    private void rebuildBoard() {
+        grid.removeAll();
+        qOverlayGrid.removeAll();
+        grid.setLayout(new GridLayout(geom.rows, geom.cols, 6, 6));
+        qOverlayGrid.setLayout(new GridLayout(geom.rows, geom.cols, 4, 4));
+        cells = new JButton[geom.cells];
+        qCells = new JLabel[geom.cells];
+        board = makeEmptyBoard(geom.cells);
+        int span = Math.max(geom.rows, geom.cols);
+        Font big = new Font(Font.SANS_SERIF, Font.BOLD, Math.max(16, 126 / span));
+        for (int i = 0; i < geom.cells; i++) {
+            JButton b = new JButton("");
+            b.setFont(big);
+            b.setFocusPainted(false);
+            b.setBackground(Color.WHITE);
+            final int idx = i;
+            b.addActionListener(evt -> humanMove(idx));
+            cells[i] = b;
+            grid.add(b);
+        }
+        for (int i = 0; i < geom.cells; i++) {
+            JLabel ql = new JLabel("–", SwingConstants.CENTER);
+            ql.setOpaque(true);
+            ql.setBackground(new Color(245,245,245));
+            ql.setBorder(BorderFactory.createLineBorder(new Color(220,220,220)));
+            ql.setFont(new Font(Font.MONOSPACED, Font.PLAIN, span > 4 ? 11 : 14));
+            qCells[i] = ql;
+            qOverlayGrid.add(ql);
+        }
+        grid.revalidate();
+        grid.repaint();
+        qOverlayGrid.revalidate();
+        qOverlayGrid.repaint();
+    }
+
+    /**
+     * Applies the board picked (or typed, as RxCxK) in the board selector. 3x3 uses
+     * the dense agent; any other size gets a hashed-table agent loaded from its own
+     * file, and the table of the board being left is saved first.
+     */
+    private void switchBoard() {
+        Object sel = boardCombo.getSelectedItem();
+        Geometry g;
+        try {
+            g = (sel instanceof Geometry) ? (Geometry) sel : Geometry.parse(String.valueOf(sel));
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Invalid Board", JOptionPane.WARNING_MESSAGE);
+            boardCombo.setSelectedItem(geom);
+            return;
+        }
+        if (g.equals(geom)) return;
+        if (mnkAgent != null) {
+            checkpointer.submit(checkpointSource(), geom.tableFile())
+                    .exceptionally(ex -> { System.err.println("Save failed: " + ex.getMessage()); return null; });
+        }
+        if (netAgent != null) {
+            checkpointer.submit(netAgent::encode, geom.netFile())
+                    .exceptionally(ex -> { System.err.println("Save failed: " + ex.getMessage()); return null; });
+            netAgent = null;
+        }
+        geom = g;
+        mnkAgent = g.isClassic() ? null : new MnkAgent(g, MAX_STATES);
+        overlayState = null;
+        overlayTitle.setText("Q Overlay (state = current board)");
+        rebuildBoard();
+        resetGame();
+        loadQ();
+    }
+
+    /** The solver opponent and value iteration exist only for the 3x3 table; says so and returns false otherwise. */
+    private boolean checkModeForBoard(TrainMode mode) {
+        if (netSelected()) {
+            if (QNetAgent.supports(mode)) return true;
+            JOptionPane.showMessageDialog(this, "\"" + mode + "\" needs the Q-table engine.", "Train", JOptionPane.WARNING_MESSAGE);
+            return false;
+        }
+        if (mnkAgent == null || MnkAgent.supports(mode)) return true;
+        JOptionPane.showMessageDialog(this, "\"" + mode + "\" needs the 3x3 board.", "Train", JOptionPane.WARNING_MESSAGE);
+        return false;
+    }
+
     // ========= Training =========
     private void promptAndStartTraining() {
-        String input = JOptionPane.showInputDialog(this, "Episodes to train:", "50000");
-        if (input == null) return;
+        if (!checkModeForBoard((TrainMode) trainModeCombo.getSelectedItem())) return;
+        if (trainModeCombo.getSelectedItem() == TrainMode.VALUE_ITERATION) { promptAndStartValueIteration(); return; }
+        int cores = Runtime.getRuntime().availableProcessors();
+        JTextField episodesField = new JTextField("50000", 10);
+        JSpinner threadsSpinner = new JSpinner(new SpinnerNumberModel(cores, 1, Math.max(cores * 2, 2), 1));
+        Learning current = agent.getLearning();
+        JComboBox<LearningRule> ruleCombo = new JComboBox<>(LearningRule.values());
+        ruleCombo.setSelectedItem(current.rule);
+        JTextField nField = new JTextField(String.valueOf(current.rule == LearningRule.N_STEP ? current.n : 3), 4);
+        JTextField lambdaField = new JTextField(String.valueOf(current.rule == LearningRule.LAMBDA ? current.lambda : 0.8), 4);
+        JTextField replayField = new JTextField(String.valueOf(current.replayCapacity), 8);
+        JCheckBox untilStableCheck = new JCheckBox("Until stable (adaptive ε)");
+        untilStableCheck.setToolTipText("Stop once Q-values and the greedy policy stop changing ("
+                + Convergence.Criteria.DEFAULT + "); the episode count becomes the budget");
+        untilStableCheck.addActionListener(e -> { // a budget, not a target: leave room to converge
+            if (untilStableCheck.isSelected() && "50000".equals(episodesField.getText().trim())) episodesField.setText("1000000");
+        });
+        // the hashed table and the Q-network have a single writer and learn one step at a time
+        for (JComponent c : new JComponent[]{threadsSpinner, ruleCombo, nField, lambdaField, replayField, untilStableCheck}) {
+            c.setEnabled(learner() == agent);
+        }
+        JPanel form = new JPanel(new GridLayout(7, 2, 6, 6));
+        form.add(new JLabel("Episodes to train:"));
+        form.add(episodesField);
+        form.add(new JLabel("Worker threads:"));
+        form.add(threadsSpinner);
+        form.add(new JLabel("Learning rule:"));
+        form.add(ruleCombo);
+        form.add(new JLabel("n (n-step):"));
+        form.add(nField);
+        form.add(new JLabel("λ (traces):"));
+        form.add(lambdaField);
+        form.add(new JLabel("Replay buffer (0 = off):"));
+        form.add(replayField);
+        form.add(untilStableCheck);
+        form.add(new JLabel("(episodes = most to train)"));
+        int choice = JOptionPane.showConfirmDialog(this, form, "Train", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (choice != JOptionPane.OK_OPTION) return;
         int episodes;
-        try { episodes = Math.max(1, Integer.parseInt(input.trim())); }
-        catch (NumberFormatException ex) {
-            JOptionPane.showMessageDialog(this, "Please enter a valid integer.", "Invalid Input", JOptionPane.WARNING_MESSAGE);
+        Learning learning;
+        try {
+            episodes = Math.max(1, Integer.parseInt(episodesField.getText().trim()));
+            learning = new Learning((LearningRule) ruleCombo.getSelectedItem(), Integer.parseInt(nField.getText().trim()),
+                    Double.parseDouble(lambdaField.getText().trim()), Integer.parseInt(replayField.getText().trim()), 32);
+        } catch (IllegalArgumentException ex) { // includes NumberFormatException
+            String msg = (ex instanceof NumberFormatException) ? "Please enter valid numbers." : ex.getMessage();
+            JOptionPane.showMessageDialog(this, msg, "Invalid Input", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        agent.setLearning(learning);
+        if (untilStableCheck.isSelected() && learner() == agent) {
+            startConvergenceWorker(episodes, (Integer) threadsSpinner.getValue());
+        } else {
+            startTrainingWorker(episodes, (Integer) threadsSpinner.getValue());
+        }
+    }
+
+    private void promptAndStartValueIteration() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        JTextField sweepsField = new JTextField("100", 10);
+        JTextField thresholdField = new JTextField("1e-9", 10);
+        JSpinner threadsSpinner = new JSpinner(new SpinnerNumberModel(cores, 1, Math.max(cores * 2, 2), 1));
+        JCheckBox synchronousCheck = new JCheckBox("Synchronous sweeps (default: Gauss-Seidel, in place)");
+        JPanel form = new JPanel(new GridLayout(4, 2, 6, 6));
+        form.add(new JLabel("Max sweeps:"));
+        form.add(sweepsField);
+        form.add(new JLabel("Stop when max ΔQ ≤"));
+        form.add(thresholdField);
+        form.add(new JLabel("Worker threads:"));
+        form.add(threadsSpinner);
+        form.add(synchronousCheck);
+        int choice = JOptionPane.showConfirmDialog(this, form, "Value Iteration", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (choice != JOptionPane.OK_OPTION) return;
+        int sweeps;
+        double threshold;
+        try {
+            sweeps = Math.max(1, Integer.parseInt(sweepsField.getText().trim()));
+            threshold = Math.max(0, Double.parseDouble(thresholdField.getText().trim()));
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Please enter valid numbers.", "Invalid Input", JOptionPane.WARNING_MESSAGE);
             return;
         }
-        startTrainingWorker(episodes);
+        startValueIterationWorker(new ValueIteration(agent, (Integer) threadsSpinner.getValue(), synchronousCheck.isSelected()),
+                sweeps, threshold);
     }
 
     private void setTrainingUIEnabled(boolean enabled) {
         trainBtn.setEnabled(enabled);
+        boolean classic = mnkAgent == null;
+        evaluateBtn.setEnabled(enabled && classic);
         resetBtn.setEnabled(enabled);
         saveBtn.setEnabled(enabled);
         loadBtn.setEnabled(enabled);
         trainModeCombo.setEnabled(enabled);
         playAsOCheck.setEnabled(enabled);
+        symmetryCheck.setEnabled(enabled && classic);
+        boardCombo.setEnabled(enabled);
+        engineCombo.setEnabled(enabled);
         stepEpisodeBtn.setEnabled(enabled);
         showQCurrentBtn.setEnabled(enabled);
         showQEmptyBtn.setEnabled(enabled);
+        optimalityGapBtn.setEnabled(enabled && classic);
         for (JButton b : cells) b.setEnabled(enabled);
     }
 
-    private void startTrainingWorker(int episodes) {
+    private void startTrainingWorker(int episodes, int threads) {
         setTrainingUIEnabled(false);
         progressBar.setValue(0);
         progressLabel.setText("Training… 0/" + episodes);
-        status.setText("Training in progress. Please wait…");
+        final Learner boardAgent = learner() == agent ? null : learner();
+        final Checkpointer.Source source = learnerSource();
+        final String file = learnerFile();
+        checkpointer.startPeriodic(source, file, CHECKPOINT_MS);
+        status.setText("Training in progress (" + (boardAgent == null ? threads : 1) + " threads). Please wait…");
 
-        final String selectedMode = (String) trainModeCombo.getSelectedItem();
+        final TrainMode selectedMode = (TrainMode) trainModeCombo.getSelectedItem();
 
-        SwingWorker<Void, Integer> worker = new SwingWorker<>() {
+        SwingWorker<Void, Long> worker = new SwingWorker<>() {
             @Override
-            protected Void doInBackground() {
-                final int reportEvery = Math.max(1, episodes / 200);
-                for (int i = 1; i <= episodes; i++) {
-                    if ("Self-Play (strong)".equals(selectedMode)) {
-                        agent.trainSelfPlaySmartOneEpisode();
-                    } else {
-                        agent.trainOneEpisode();
-                    }
-                    if (i % reportEvery == 0 || i == episodes) {
-                        int percent = (int) Math.round(i * 100.0 / episodes);
-                        setProgress(percent);
-                        publish(i);
+            protected Void doInBackground() throws Exception {
+                // Refreshes are coalesced by time: at most one snapshot + UI update per
+                // UI_REFRESH_MS, however fast episodes complete.
+                final long[] lastRefresh = {0};
+                LongConsumer report = done -> {
+                    long now = System.nanoTime();
+                    if (now - lastRefresh[0] < UI_REFRESH_MS * 1_000_000L && done != episodes) return;
+                    lastRefresh[0] = now;
+                    if (boardAgent == null) agent.publishSnapshot(); // copied here, off both the EDT and the workers
+                    setProgress((int) Math.round(done * 100.0 / episodes));
+                    publish(done);
+                };
+                if (boardAgent != null) {
+                    // single writer: episodes run here, serialized with the EDT's reads
+                    for (long done = 1; done <= episodes; done++) {
+                        boardAgent.trainOneEpisode(selectedMode);
+                        report.accept(done);
                     }
+                    if (boardAgent instanceof QNetAgent) ((QNetAgent) boardAgent).flush(); // so the saved weights include the run's tail
+                    return null;
                 }
+                new ParallelTrainer(agent, selectedMode, threads).run(episodes, report);
                 return null;
             }
 
             @Override
-            protected void process(java.util.List<Integer> chunks) {
-                int done = chunks.get(chunks.size() - 1);
-                progressLabel.setText("Training… " + done + "/" + episodes);
+            protected void process(java.util.List<Long> chunks) {
+                long done = chunks.get(chunks.size() - 1);
+                if (boardAgent instanceof MnkAgent) {
+                    MnkAgent m = (MnkAgent) boardAgent;
+                    progressLabel.setText(String.format("Training… %d/%d (%,d states, %,d evicted)",
+                            done, episodes, m.tableSize(), m.evictions()));
+                } else if (boardAgent instanceof QNetAgent) {
+                    progressLabel.setText(String.format("Training… %d/%d (%,d updates)", done, episodes, ((QNetAgent) boardAgent).updates()));
+                } else {
+                    progressLabel.setText(String.format("Training… %d/%d (%,.0f eps/s)",
+                            done, episodes, agent.stats().getEpisodesPerSecond()));
+                }
 
                 // Live overlay update (either current board or empty board)
                 if (liveOverlayDuringTrain.isSelected()) {
@@ -311,10 +642,22 @@ public class TTT_RL extends JFrame {
             @Override
             protected void done() {
                 setTrainingUIEnabled(true);
-                progressLabel.setText("Done (" + episodes + " episodes).");
-                status.setText("Training complete.");
+                String failure = null;
+                try { get(); }
+                catch (Exception ex) { failure = failureMessage(ex); }
+                checkpointer.stopPeriodic();
+                // what was learned before a failure is still worth keeping
+                checkpointer.submit(source, file)
+                        .exceptionally(ex -> { System.err.println("Checkpoint failed: " + ex.getMessage()); return null; });
+                freezePolicy();
                 resetGame();
                 maybeAgentAutoOpen();
+                if (failure != null) {
+                    reportTrainingFailure(failure);
+                    return;
+                }
+                progressLabel.setText("Done (" + episodes + " episodes).");
+                status.setText("Training complete.");
                 JOptionPane.showMessageDialog(TTT_RL.this, "Training complete: " + episodes + " episodes.");
             }
         };
@@ -329,32 +672,370 @@ public class TTT_RL extends JFrame {
         worker.execute();
     }
 
-    /** Run exactly ONE episode in the selected training mode (blocks briefly). */
+    /**
+     * Trains the 3x3 table window by window until Convergence finds it stable (or for
+     * at most {@code budget} episodes); the progress bar shows the convergence estimate.
+     */
+    private void startConvergenceWorker(int budget, int threads) {
+        setTrainingUIEnabled(false);
+        progressBar.setValue(0);
+        progressLabel.setText("Training until stable… 0/" + budget);
+        checkpointer.startPeriodic(checkpointSource(), geom.tableFile(), CHECKPOINT_MS);
+        status.setText("Training until stable (" + threads + " threads, at most " + budget + " episodes). Please wait…");
+        final Convergence conv = new Convergence(agent, (TrainMode) trainModeCombo.getSelectedItem(), threads,
+                Convergence.Criteria.DEFAULT);
+        final long start = System.nanoTime();
+
+        SwingWorker<Convergence.Window, Convergence.Window> worker = new SwingWorker<>() {
+            @Override
+            protected Convergence.Window doInBackground() throws Exception {
+                // each window publishes a snapshot, which the overlay then reads
+                return conv.run(budget, done -> {}, w -> {
+                    setProgress((int) Math.round(w.estimate * 100));
+                    publish(w);
+                });
+            }
+
+            @Override
+            protected void process(java.util.List<Convergence.Window> chunks) {
+                Convergence.Window w = chunks.get(chunks.size() - 1);
+                progressLabel.setText(String.format("Until stable… %d/%d (max ΔQ %.2f, mean ΔQ %.4f, policy Δ %.1f%%, ε %.3f)",
+                        w.episodes, budget, w.maxDelta, w.meanDelta, w.policyChange * 100, w.epsilon));
+                if (liveOverlayDuringTrain.isSelected()) refreshOverlayForCurrentSelection();
+            }
+
+            @Override
+            protected void done() {
+                setTrainingUIEnabled(true);
+                String summary = null, failure = null;
+                try {
+                    Convergence.Window last = get();
+                    long done = conv.completed();
+                    double secs = (System.nanoTime() - start) / 1e9;
+                    summary = String.format("%s after %d episodes in %.2f s", last != null && last.converged ? "stable" : "budget reached",
+                            done, secs);
+                    if (done < budget) {
+                        summary += String.format("; about %.1f s saved vs. all %d episodes", (budget - done) * secs / done, budget);
+                    }
+                } catch (Exception ex) {
+                    failure = failureMessage(ex);
+                }
+                checkpointer.stopPeriodic();
+                checkpointer.submit(checkpointSource(), geom.tableFile())
+                        .exceptionally(ex -> { System.err.println("Checkpoint failed: " + ex.getMessage()); return null; });
+                freezePolicy();
+                resetGame();
+                maybeAgentAutoOpen();
+                if (failure != null) {
+                    reportTrainingFailure(failure);
+                    return;
+                }
+                progressLabel.setText("Done (" + summary + ").");
+                status.setText("Training complete.");
+                JOptionPane.showMessageDialog(TTT_RL.this, "Training complete: " + summary + ".");
+            }
+        };
+        worker.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) progressBar.setValue((Integer) evt.getNewValue());
+        });
+        worker.execute();
+    }
+
+    /** What a background task died of, without the ExecutionException wrapper. */
+    private static String failureMessage(Exception ex) {
+        Throwable cause = (ex instanceof ExecutionException && ex.getCause() != null) ? ex.getCause() : ex;
+        return String.valueOf(cause);
+    }
+
+    private void reportTrainingFailure(String failure) {
+        System.err.println("Training failed: " + failure);
+        progressLabel.setText("Failed.");
+        status.setText("Training failed.");
+        JOptionPane.showMessageDialog(this, "Training failed: " + failure, "Train", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /** Runs value iteration on the dense table, reporting the max delta after each sweep. */
+    private void startValueIterationWorker(ValueIteration vi, int maxSweeps, double threshold) {
+        setTrainingUIEnabled(false);
+        progressBar.setValue(0);
+        progressLabel.setText("Value iteration… 0/" + maxSweeps + " sweeps");
+        checkpointer.startPeriodic(checkpointSource(), geom.tableFile(), CHECKPOINT_MS);
+        status.setText("Value iteration over " + vi.states() + " states. Please wait…");
+        final long start = System.nanoTime();
+
+        SwingWorker<Integer, double[]> worker = new SwingWorker<>() {
+            @Override
+            protected Integer doInBackground() {
+                return vi.run(maxSweeps, threshold, (delta, sweep) -> {
+                    agent.publishSnapshot();
+                    setProgress(delta <= threshold ? 100 : sweep * 100 / maxSweeps);
+                    publish(new double[]{sweep, delta});
+                });
+            }
+
+            @Override
+            protected void process(java.util.List<double[]> chunks) {
+                double[] last = chunks.get(chunks.size() - 1);
+                progressLabel.setText(String.format("Value iteration… %d/%d sweeps (max ΔQ %.2e)", (int) last[0], maxSweeps, last[1]));
+                if (liveOverlayDuringTrain.isSelected()) refreshOverlayForCurrentSelection();
+            }
+
+            @Override
+            protected void done() {
+                setTrainingUIEnabled(true);
+                String summary;
+                try {
+                    summary = String.format("%d sweeps in %.2f s", get(), (System.nanoTime() - start) / 1e9);
+                } catch (Exception ex) {
+                    System.err.println("Value iteration failed: " + ex.getMessage());
+                    summary = "failed";
+                }
+                checkpointer.stopPeriodic();
+                checkpointer.submit(checkpointSource(), geom.tableFile())
+                        .exceptionally(ex -> { System.err.println("Checkpoint failed: " + ex.getMessage()); return null; });
+                freezePolicy();
+                progressLabel.setText("Done (" + summary + ").");
+                status.setText("Value iteration complete.");
+                resetGame();
+                maybeAgentAutoOpen();
+                JOptionPane.showMessageDialog(TTT_RL.this, "Value iteration complete: " + summary + ".");
+            }
+        };
+        worker.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) progressBar.setValue((Integer) evt.getNewValue());
+        });
+        worker.execute();
+    }
+
+    /** Run exactly ONE episode in the selected training mode (blocks briefly); one sweep for value iteration. */
     private void stepOneEpisode() {
-        String mode = (String) trainModeCombo.getSelectedItem();
-        if ("Self-Play (strong)".equals(mode)) {
-            agent.trainSelfPlaySmartOneEpisode();
-        } else {
-            agent.trainOneEpisode();
+        TrainMode mode = (TrainMode) trainModeCombo.getSelectedItem();
+        if (!checkModeForBoard(mode)) return;
+        if (mode == TrainMode.VALUE_ITERATION) {
+            double delta = new ValueIteration(agent, 1, false).sweep();
+            freezePolicy();
+            refreshOverlayForCurrentSelection();
+            JOptionPane.showMessageDialog(this, String.format("Ran 1 value-iteration sweep (max ΔQ %.2e).", delta));
+            return;
         }
+        Learner learner = learner();
+        learner.trainOneEpisode(mode);
+        if (learner == agent) freezePolicy();
         refreshOverlayForCurrentSelection();
         JOptionPane.showMessageDialog(this, "Stepped 1 episode (" + mode + ").");
     }
 
+    // ========= Evaluation =========
+    private void promptAndStartEvaluation() {
+        String[] opponents = {"Random", "Solver (perfect)", "Legacy table (" + LEGACY_QTABLE_FILE + ")", "Saved snapshot…"};
+        JComboBox<String> opponentCombo = new JComboBox<>(opponents);
+        JTextField gamesField = new JTextField("1000000", 10);
+        JPanel form = new JPanel(new GridLayout(2, 2, 6, 6));
+        form.add(new JLabel("Opponent:"));
+        form.add(opponentCombo);
+        form.add(new JLabel("Games:"));
+        form.add(gamesField);
+        int choice = JOptionPane.showConfirmDialog(this, form, "Evaluate greedy policy", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (choice != JOptionPane.OK_OPTION) return;
+        long games;
+        try { games = Math.max(1, Long.parseLong(gamesField.getText().trim())); }
+        catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Please enter a valid integer.", "Invalid Input", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        String spec;
+        switch (opponentCombo.getSelectedIndex()) {
+            case 0: spec = "random"; break;
+            case 1: spec = "solver"; break;
+            case 2: spec = "legacy"; break;
+            default: {
+                JFileChooser chooser = new JFileChooser(new File("."));
+                if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+                spec = chooser.getSelectedFile().getPath();
+            }
+        }
+        startEvaluationWorker(spec, games);
+    }
+
+    /** Plays the tournament on the fork-join pool; the EDT only sees streamed tallies. */
+    private void startEvaluationWorker(String opponentSpec, long games) {
+        setTrainingUIEnabled(false);
+        progressBar.setValue(0);
+        progressLabel.setText("Evaluating… 0/" + games);
+        status.setText("Evaluating against " + opponentSpec + "…");
+
+        SwingWorker<Tournament.Tally, Tournament.Tally> worker = new SwingWorker<>() {
+            @Override
+            protected Tournament.Tally doInBackground() throws Exception {
+                Tournament t = new Tournament(Tournament.greedy(agent), Tournament.policy(opponentSpec),
+                        Runtime.getRuntime().availableProcessors());
+                return t.run(games, 200, tally -> {
+                    setProgress((int) (tally.games * 100 / games));
+                    publish(tally);
+                });
+            }
+
+            @Override
+            protected void process(java.util.List<Tournament.Tally> chunks) {
+                Tournament.Tally t = chunks.get(chunks.size() - 1);
+                progressLabel.setText("Evaluating… " + t.games + "/" + games + "  " + t.summary());
+            }
+
+            @Override
+            protected void done() {
+                setTrainingUIEnabled(true);
+                updateStatusForTurn();
+                try {
+                    Tournament.Tally t = get();
+                    progressLabel.setText("Evaluated " + t.games + " games.");
+                    JOptionPane.showMessageDialog(TTT_RL.this,
+                            "Greedy policy vs " + opponentSpec + " (" + t.games + " games):\n" + t.report(),
+                            "Evaluation", JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception ex) {
+                    progressLabel.setText("Evaluation failed.");
+                    JOptionPane.showMessageDialog(TTT_RL.this, "Evaluation failed: " + ex.getMessage(),
+                            "Evaluation", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) progressBar.setValue((Integer) evt.getNewValue());
+        });
+        worker.execute();
+    }
+
+    /** Compares the agent's greedy move with the solver's in every reachable position. */
+    private void showOptimalityGap() {
+        Solver.Gap gap = Solver.get().optimalityGap(agent);
+        JOptionPane.showMessageDialog(this, String.format(
+                "Greedy move is optimal in %d of %d reachable positions (gap %.2f%%).%n%d moves turn a won or drawn position into a loss.",
+                gap.states - gap.suboptimal, gap.states, gap.rate() * 100, gap.losing),
+                "Optimality Gap", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /** Snapshot encoder for the table of the board shown now; runs on the checkpoint thread. */
+    private Checkpointer.Source checkpointSource() {
+        final MnkAgent board = mnkAgent;
+        return (board != null) ? board::encode : () -> agent.publishSnapshot().encode();
+    }
+
+    /** Encoder and file of whatever learner() returns. */
+    private Checkpointer.Source learnerSource() { return netSelected() ? net()::encode : checkpointSource(); }
+    private String learnerFile() { return netSelected() ? geom.netFile() : geom.tableFile(); }
+
+    /** Checkpoints the current learner in the background and says so once it is on disk. */
     private void saveQ() {
-        try {
-            agent.saveTo("ttt_qtable.ser");
-            JOptionPane.showMessageDialog(this, "Q-table saved.");
-        } catch (Exception ex) {
-            System.err.println("Save failed: " + ex.getMessage());
+        final String what = netSelected() ? "Q-network" : "Q-table";
+        status.setText("Saving " + what + "…");
+        checkpointer.submit(learnerSource(), learnerFile()).whenComplete((v, ex) -> SwingUtilities.invokeLater(() -> {
+            updateStatusForTurn();
+            if (ex == null) JOptionPane.showMessageDialog(this, what + " saved.");
+            else System.err.println("Save failed: " + ex.getMessage());
+        }));
+    }
+
+    /** Writes the final checkpoint off the EDT (the window keeps repainting meanwhile), then exits. */
+    private void saveAndExit() {
+        if (closing) return;
+        closing = true;
+        setTrainingUIEnabled(false);
+        if (loading) {
+            // nothing learned since the last save, so no half-loaded table is written, but
+            // checkpoints already queued (the board just left) still land before we exit
+            status.setText("Finishing saves before exit…");
+            new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws Exception {
+                    checkpointer.awaitIdle();
+                    return null;
+                }
+
+                @Override
+                protected void done() { dispose(); System.exit(0); }
+            }.execute();
+            return;
         }
+        status.setText("Saving Q-table before exit…");
+        if (netAgent != null) {
+            checkpointer.submit(netAgent::encode, geom.netFile())
+                    .exceptionally(ex -> { System.err.println("Save failed: " + ex.getMessage()); return null; });
+        }
+        checkpointer.submit(checkpointSource(), geom.tableFile()).whenComplete((v, ex) -> {
+            if (ex != null) System.err.println("Save failed: " + ex.getMessage());
+            SwingUtilities.invokeLater(() -> { dispose(); System.exit(0); });
+        });
     }
 
+    /**
+     * Loads the current board's saved table (and Q-network, if one is in use) on a
+     * worker thread, so the window stays responsive however large the file. Until it
+     * finishes, the board and the Train/Save/Load controls are disabled and the
+     * progress bar runs. Then the overlay is refreshed and the load time, table size
+     * or error is reported.
+     */
     private void loadQ() {
-        try {
-            agent.loadFrom("ttt_qtable.ser");
-            status.setText("Loaded Q-table.");
-        } catch (Exception ignored) {}
+        loading = true;
+        setTrainingUIEnabled(false);
+        progressBar.setIndeterminate(true);
+        progressLabel.setText("Loading…");
+        status.setText("Loading Q-table…");
+        final Geometry g = geom;
+        final MnkAgent board = mnkAgent;
+        final QNetAgent net = netAgent;
+        final long start = System.nanoTime();
+
+        new SwingWorker<String, Void>() {
+            @Override
+            protected String doInBackground() throws Exception {
+                checkpointer.awaitIdle(); // don't read a file a queued checkpoint is about to replace
+                if (net != null) Checkpointer.loadNewest(g.netFile(), CHECKPOINT_KEEP, net::loadFrom);
+                String file = g.tableFile(), used;
+                int states;
+                if (board != null) {
+                    used = Checkpointer.loadNewest(file, CHECKPOINT_KEEP, board::loadFrom);
+                    states = board.tableSize();
+                } else {
+                    if (!new File(QTABLE_FILE).exists() && new File(LEGACY_QTABLE_FILE).exists()) {
+                        agent.loadFrom(LEGACY_QTABLE_FILE);
+                        agent.saveTo(QTABLE_FILE); // one-time conversion to the binary format
+                    }
+                    used = Checkpointer.loadNewest(file, CHECKPOINT_KEEP, agent::loadFrom);
+                    states = agent.tableSize();
+                }
+                if (used == null) return "No saved Q-table for " + g + "; starting empty.";
+                return String.format("Loaded %s: %,d states (%,d KB) in %d ms.", used.equals(file) ? file : "backup " + used,
+                        states, (new File(used).length() + 1023) / 1024, (System.nanoTime() - start) / 1_000_000);
+            }
+
+            @Override
+            protected void done() {
+                loading = false;
+                progressBar.setIndeterminate(false);
+                String msg;
+                try {
+                    msg = get();
+                } catch (Exception ex) {
+                    Throwable cause = (ex instanceof ExecutionException) ? ex.getCause() : ex;
+                    msg = "Q-table not loaded: " + cause.getMessage();
+                    System.err.println(msg);
+                }
+                if (closing) return;
+                if (board == null) {
+                    symmetryCheck.setSelected(agent.isCanonical());
+                    freezePolicy();
+                }
+                setTrainingUIEnabled(true);
+                progressLabel.setText(msg);
+                updateStatusForTurn();
+                refreshOverlayForCurrentSelection();
+                maybeAgentAutoOpen();
+            }
+        }.execute();
+    }
+
+    /** Publishes a fresh snapshot for the overlay and recompiles the greedy policy live play uses. */
+    private void freezePolicy() {
+        policy = CompiledPolicy.compile(agent.publishSnapshot(), 1);
     }
 
     // ========= Q Overlay helpers =========
@@ -364,10 +1045,18 @@ public class TTT_RL extends JFrame {
         updateCellTooltipsForState(board); // tooltips always reflect current board
     }
 
+    /** Values of a board from the selected engine (see Agent.peekValues); null if it has none. */
+    private double[] peekRow(char[] state) {
+        long x = 0, o = 0;
+        for (int i = 0; i < state.length; i++) {
+            if (state[i] == 'X') x |= 1L << i; else if (state[i] == 'O') o |= 1L << i;
+        }
+        return engine().peekValues(x, o);
+    }
+
     private void updateQOverlayForState(char[] state) {
-        String s = stringify(state);
-        double[] row = agent.peekQRow(s); // may be null if unseen
-        for (int i = 0; i < 9; i++) {
+        double[] row = peekRow(state); // may be null if unseen
+        for (int i = 0; i < state.length; i++) {
             String txt;
             if (row == null) {
                 txt = "–";
@@ -385,8 +1074,8 @@ public class TTT_RL extends JFrame {
     }
 
     private void updateCellTooltipsForState(char[] state) {
-        double[] row = agent.peekQRow(stringify(state));
-        for (int i = 0; i < 9; i++) {
+        double[] row = peekRow(state);
+        for (int i = 0; i < state.length; i++) {
             if (row == null) { cells[i].setToolTipText(null); continue; }
             if (state[i] == ' ') {
                 double v = row[i];
@@ -403,207 +1092,4916 @@ public class TTT_RL extends JFrame {
         return String.format("%+.3f", v);
     }
 
-    private static char[] makeEmptyBoard() {
-        char[] b = new char[9];
+    private static char[] makeEmptyBoard(int cells) {
+        char[] b = new char[cells];
         java.util.Arrays.fill(b, ' ');
         return b;
     }
 
     // ========= Static game helpers =========
-    private static boolean isDraw(char[] b) {
-        return winnerOf(b) == null && new String(b).indexOf(' ') == -1;
-    }
-    private static Character winnerOf(char[] b) {
-        for (int[] L : lines()) {
-            if (b[L[0]] != ' ' && b[L[0]] == b[L[1]] && b[L[1]] == b[L[2]]) return b[L[0]];
+    // Bitboards: bit i of the X (or O) mask is set when that side occupies cell i.
+    static final int FULL = 0x1FF;
+    /** Stands in for the next state code when a move ended the game. */
+    static final int TERMINAL = -1;
+    private static final int[][] LINES = {
+            {0,1,2},{3,4,5},{6,7,8},
+            {0,3,6},{1,4,7},{2,5,8},
+            {0,4,8},{2,4,6}
+    };
+    private static final int[] WIN_MASKS = new int[LINES.length];
+    /** WINS[m] is true when the 9-bit mask m contains a complete line. */
+    private static final boolean[] WINS = new boolean[FULL + 1];
+    /** Base-3 weight of a bitboard: code(x, o) = B3[x] + 2 * B3[o]. */
+    private static final int[] B3 = new int[FULL + 1];
+    /** POW3[i] = 3^i: X on cell i adds POW3[i] to a state code, O adds 2 * POW3[i]. */
+    private static final int[] POW3 = {1, 3, 9, 27, 81, 243, 729, 2187, 6561};
+    static {
+        for (int l = 0; l < LINES.length; l++) {
+            for (int i : LINES[l]) WIN_MASKS[l] |= 1 << i;
+        }
+        for (int m = 0; m <= FULL; m++) {
+            for (int w : WIN_MASKS) if ((m & w) == w) { WINS[m] = true; break; }
+            int pow = 1;
+            for (int i = 0; i < 9; i++, pow *= 3) if (((m >>> i) & 1) != 0) B3[m] += pow;
         }
-        return null;
     }
-    private static int[][] lines() {
-        return new int[][]{
-                {0,1,2},{3,4,5},{6,7,8},
-                {0,3,6},{1,4,7},{2,5,8},
-                {0,4,8},{2,4,6}
-        };
+
+    private static boolean isDraw(int x, int o) {
+        return (x | o) == FULL && !WINS[x] && !WINS[o];
+    }
+    /** 'X' or 'O' if that side has a line, otherwise ' '. */
+    private static char winnerOf(int x, int o) {
+        return WINS[x] ? 'X' : WINS[o] ? 'O' : ' ';
+    }
+    private static int legalMask(int x, int o) { return ~(x | o) & FULL; }
+    private static int code(int x, int o) { return B3[x] + 2 * B3[o]; }
+    /** Inverse of code(): the X and O bitboards of a state code. */
+    static int decodeX(int code) {
+        int m = 0;
+        for (int i = 0; i < 9; i++, code /= 3) if (code % 3 == 1) m |= 1 << i;
+        return m;
+    }
+    static int decodeO(int code) {
+        int m = 0;
+        for (int i = 0; i < 9; i++, code /= 3) if (code % 3 == 2) m |= 1 << i;
+        return m;
     }
-    private static java.util.List<Integer> legalActions(char[] b) {
-        java.util.List<Integer> a = new java.util.ArrayList<>();
-        for (int i = 0; i < 9; i++) if (b[i] == ' ') a.add(i);
-        return a;
+    /** Index of the n-th (0-based) set bit of a legal-move mask. */
+    private static int nthLegal(int legal, int n) {
+        for (; n > 0; n--) legal &= legal - 1;
+        return Integer.numberOfTrailingZeros(legal);
+    }
+    private static int nthLegal(long legal, int n) {
+        for (; n > 0; n--) legal &= legal - 1;
+        return Long.numberOfTrailingZeros(legal);
     }
     private static String stringify(char[] b) { return new String(b); }
 
-    // ========= Q-Learning Agent =========
-    static class QLearningAgent implements Serializable {
-        private static final long serialVersionUID = 1L;
-
-        private final char me;
-        private final char opp;
-        private double alpha = 0.5;
-        private double gamma = 0.9;
-        private double epsilon = 0.2;
-
-        private final Map<String, double[]> q = new HashMap<>();
-        private final Random rnd = new Random();
+    /** Codes of every position reachable from the empty board with X to move first, in DFS order. */
+    static int[] reachableCodes(boolean includeTerminal) {
+        boolean[] visited = new boolean[DenseQTable.STATES];
+        int[] out = new int[DenseQTable.STATES];
+        int n = collectReachable(0, 0, visited, out, 0, includeTerminal);
+        return java.util.Arrays.copyOf(out, n);
+    }
+    private static int collectReachable(int x, int o, boolean[] visited, int[] out, int n, boolean includeTerminal) {
+        int c = code(x, o);
+        if (visited[c]) return n;
+        visited[c] = true;
+        boolean terminal = WINS[x] || WINS[o] || (x | o) == FULL;
+        if (!terminal || includeTerminal) out[n++] = c;
+        if (terminal) return n;
+        boolean xToMove = Integer.bitCount(x) == Integer.bitCount(o);
+        for (int m = legalMask(x, o); m != 0; m &= m - 1) {
+            int bit = m & -m;
+            n = xToMove ? collectReachable(x | bit, o, visited, out, n, includeTerminal)
+                        : collectReachable(x, o | bit, visited, out, n, includeTerminal);
+        }
+        return n;
+    }
 
-        QLearningAgent(char me, char opp) { this.me = me; this.opp = opp; }
+    /** Base-3 state code of a board: cell i contributes 0 (empty), 1 (X) or 2 (O) times 3^i. */
+    private static int encode(char[] b) {
+        int code = 0;
+        for (int i = 8; i >= 0; i--) code = code * 3 + (b[i] == 'X' ? 1 : b[i] == 'O' ? 2 : 0);
+        return code;
+    }
+    private static int encode(String s) {
+        int code = 0;
+        for (int i = 8; i >= 0; i--) { char c = s.charAt(i); code = code * 3 + (c == 'X' ? 1 : c == 'O' ? 2 : 0); }
+        return code;
+    }
 
-        int chooseAction(String state, java.util.List<Integer> legal, double epsilonOverride) {
-            ensureState(state);
-            double eps = (epsilonOverride >= 0) ? epsilonOverride : epsilon;
-            if (!legal.isEmpty() && rnd.nextDouble() < eps) {
-                return legal.get(rnd.nextInt(legal.size()));
+    // ========= Dense Q-table =========
+    /**
+     * Q-values for all 3^9 board codes in one flat array (row = code * 9), plus a
+     * precomputed legal-move bitmask per code. Rows are pre-filled (0.0 for legal
+     * moves, -inf otherwise); {@code seen} tracks which states the agent has visited.
+     */
+    static final class DenseQTable {
+        static final int STATES = 19683;
+        static final int ACTIONS = 9;
+        static final short[] LEGAL = new short[STATES];
+        static {
+            for (int code = 0; code < STATES; code++) {
+                int c = code, mask = 0;
+                for (int i = 0; i < 9; i++, c /= 3) if (c % 3 == 0) mask |= 1 << i;
+                LEGAL[code] = (short) mask;
             }
-            double[] row = q.get(state);
-            int best = legal.get(0);
-            double bestQ = -1e9;
-            for (int a : legal) if (row[a] > bestQ) { bestQ = row[a]; best = a; }
-            return best;
         }
 
-        /** Legacy trainer: Random X vs Agent O */
-        void trainOneEpisode() {
-            char[] b = new char[9];
-            java.util.Arrays.fill(b, ' ');
-            char cur = 'X';
-            String sO = null; Integer aO = null;
+        final double[] values = new double[STATES * ACTIONS];
+        final boolean[] seen = new boolean[STATES];
+        int size;
 
-            while (true) {
-                if (cur == 'X') {
-                    java.util.List<Integer> legal = legalActions(b);
-                    if (legal.isEmpty()) break;
-                    int a = legal.get(rnd.nextInt(legal.size()));
-                    b[a] = 'X'; cur = 'O';
-                } else {
-                    java.util.List<Integer> legal = legalActions(b);
-                    if (legal.isEmpty()) break;
-                    String s = stringify(b);
-                    int a = chooseAction(s, legal, -1);
-                    b[a] = 'O';
-                    sO = s; aO = a; cur = 'X';
-                }
-                Character w = winnerOf(b);
-                if (w != null || isDraw(b)) {
-                    double r = (w == null) ? 0.0 : (w == 'O' ? +1.0 : -1.0);
-                    if (sO != null && aO != null) updateQTerminal(sO, aO, r);
-                    break;
-                }
-                if (sO != null && aO != null && cur == 'X') {
-                    String sPrime = stringify(b);
-                    updateQ(sO, aO, 0.0, sPrime);
-                    sO = null; aO = null;
+        DenseQTable() { clear(); }
+
+        void clear() {
+            for (int code = 0; code < STATES; code++) {
+                int legal = LEGAL[code], base = code * ACTIONS;
+                for (int a = 0; a < ACTIONS; a++) {
+                    values[base + a] = ((legal >>> a) & 1) != 0 ? 0.0 : Double.NEGATIVE_INFINITY;
                 }
             }
-            epsilon = Math.max(0.05, epsilon * 0.99995);
+            java.util.Arrays.fill(seen, false);
+            size = 0;
         }
 
-        /** Strong trainer: Self-play with one shared Q-table (X and O). */
-        void trainSelfPlaySmartOneEpisode() {
-            char[] b = new char[9];
-            java.util.Arrays.fill(b, ' ');
-            char cur = 'X';
-            String sPrevX = null, sPrevO = null;
-            Integer aPrevX = null, aPrevO = null;
+        void markSeen(int code) {
+            if (!seen[code]) { seen[code] = true; size++; }
+        }
 
-            while (true) {
-                java.util.List<Integer> legal = legalActions(b);
-                if (legal.isEmpty()) break;
+        /** Heap held by this table's arrays (the shared LEGAL table not included). */
+        long footprintBytes() { return 8L * values.length + seen.length; }
 
-                String s = stringify(b);
-                int a = chooseAction(s, legal, -1);
-                b[a] = cur;
+        void recount() {
+            int n = 0;
+            for (boolean b : seen) if (b) n++;
+            size = n;
+        }
 
-                Character w = winnerOf(b);
-                boolean terminal = (w != null) || isDraw(b);
+        /** Copies a row in; used when loading tables saved in the legacy map form. */
+        void putRow(int code, double[] row) {
+            System.arraycopy(row, 0, values, code * ACTIONS, ACTIONS);
+            markSeen(code);
+        }
 
-                if (cur == 'X') {
-                    if (sPrevX != null && aPrevX != null && !terminal) {
-                        updateQ(sPrevX, aPrevX, 0.0, stringify(b));
-                    }
-                    sPrevX = s; aPrevX = a;
-                } else {
-                    if (sPrevO != null && aPrevO != null && !terminal) {
-                        updateQ(sPrevO, aPrevO, 0.0, stringify(b));
+        double[] copyRow(int code) {
+            double[] row = new double[ACTIONS];
+            System.arraycopy(values, code * ACTIONS, row, 0, ACTIONS);
+            return row;
+        }
+    }
+
+    // ========= Board symmetries (D4) =========
+    /**
+     * The 8 rotations/reflections of the board. Every state code maps to a canonical
+     * representative (the smallest code among its 8 images) and the symmetry that
+     * takes it there, so symmetric positions can share one Q-table row.
+     */
+    static final class D4 {
+        /** PERM[g][i]: the cell that cell i lands on under symmetry g. */
+        static final int[][] PERM = new int[8][9];
+        static final int[] CANON = new int[DenseQTable.STATES];
+        static final byte[] SYM = new byte[DenseQTable.STATES];
+        static {
+            for (int g = 0; g < 8; g++) {
+                for (int i = 0; i < 9; i++) {
+                    int r = i / 3, c = i % 3;
+                    if (g >= 4) c = 2 - c;                       // mirror, then rotate
+                    for (int t = 0; t < (g & 3); t++) { int nr = c; c = 2 - r; r = nr; }
+                    PERM[g][i] = r * 3 + c;
+                }
+            }
+            int[] pow3 = new int[9];
+            for (int i = 0, p = 1; i < 9; i++, p *= 3) pow3[i] = p;
+            for (int code = 0; code < DenseQTable.STATES; code++) {
+                int best = Integer.MAX_VALUE, bestG = 0;
+                for (int g = 0; g < 8; g++) {
+                    int img = 0;
+                    for (int i = 0, c = code; i < 9; i++, c /= 3) img += (c % 3) * pow3[PERM[g][i]];
+                    if (img < best) { best = img; bestG = g; }
+                }
+                CANON[code] = best;
+                SYM[code] = (byte) bestG;
+            }
+        }
+    }
+
+    // ========= Board geometry (m,n,k) =========
+    /**
+     * An m,n,k game: {@code rows} x {@code cols} cells, won by {@code k} in a row
+     * horizontally, vertically or diagonally. Positions are long bitmasks (cell i is
+     * bit i, row-major), so boards have at most 64 cells. States are keyed by a
+     * Zobrist hash whose random table is seeded from the geometry, so keys are the
+     * same in every run and can be saved.
+     */
+    static final class Geometry {
+        static final Geometry CLASSIC = new Geometry(3, 3, 3);
+        static final Geometry[] PRESETS = {CLASSIC, new Geometry(4, 4, 4), new Geometry(5, 5, 4), new Geometry(6, 7, 4)};
+
+        final int rows, cols, k, cells;
+        final long full;
+        final long[] winMasks;
+        private final long[][] linesThrough; // the win masks that contain each cell
+        private final long[] zobrist;        // [2 * cell] for X, [2 * cell + 1] for O
+
+        Geometry(int rows, int cols, int k) {
+            if (rows < 1 || cols < 1 || rows * cols > 64) {
+                throw new IllegalArgumentException("Board must have 1 to 64 cells: " + rows + "x" + cols);
+            }
+            if (k < 1 || k > Math.max(rows, cols)) {
+                throw new IllegalArgumentException("k must be between 1 and " + Math.max(rows, cols) + ": " + k);
+            }
+            this.rows = rows;
+            this.cols = cols;
+            this.k = k;
+            this.cells = rows * cols;
+            this.full = (cells == 64) ? -1L : (1L << cells) - 1;
+
+            java.util.Set<Long> masks = new java.util.LinkedHashSet<>();
+            final int[][] dirs = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    for (int[] d : dirs) {
+                        int er = r + d[0] * (k - 1), ec = c + d[1] * (k - 1);
+                        if (er >= rows || ec < 0 || ec >= cols) continue;
+                        long m = 0;
+                        for (int t = 0; t < k; t++) m |= 1L << ((r + d[0] * t) * cols + c + d[1] * t);
+                        masks.add(m);
+                    }
+                }
+            }
+            winMasks = new long[masks.size()];
+            int n = 0;
+            for (long m : masks) winMasks[n++] = m;
+            linesThrough = new long[cells][];
+            for (int i = 0; i < cells; i++) {
+                final long bit = 1L << i;
+                linesThrough[i] = java.util.Arrays.stream(winMasks).filter(m -> (m & bit) != 0).toArray();
+            }
+            zobrist = new long[2 * cells];
+            long seed = packed() * 0x9E3779B97F4A7C15L;
+            for (int i = 0; i < zobrist.length; i++) zobrist[i] = mix64(seed += 0x9E3779B97F4A7C15L);
+        }
+
+        /** "RxC" or "RxCxK" (k defaults to the shorter side); commas work as separators too. */
+        static Geometry parse(String spec) {
+            String[] p = spec.trim().toLowerCase().split("\\s*[x,]\\s*");
+            try {
+                if (p.length == 2 || p.length == 3) {
+                    int r = Integer.parseInt(p[0]), c = Integer.parseInt(p[1]);
+                    return new Geometry(r, c, p.length == 3 ? Integer.parseInt(p[2]) : Math.min(r, c));
+                }
+            } catch (NumberFormatException ignored) {}
+            throw new IllegalArgumentException("Board must look like RxCxK, e.g. 4x4x4: " + spec);
+        }
+
+        boolean isClassic() { return equals(CLASSIC); }
+
+        long legal(long x, long o) { return ~(x | o) & full; }
+
+        /** True when one of the lines through {@code cell} is complete in mask m. */
+        boolean winsAt(long m, int cell) {
+            for (long w : linesThrough[cell]) if ((m & w) == w) return true;
+            return false;
+        }
+        boolean wins(long m) {
+            for (long w : winMasks) if ((m & w) == w) return true;
+            return false;
+        }
+        char winner(long x, long o) { return wins(x) ? 'X' : wins(o) ? 'O' : ' '; }
+        boolean isDraw(long x, long o) { return (x | o) == full && !wins(x) && !wins(o); }
+
+        /**
+         * Zobrist key of a position: the XOR of one random word per occupied (cell, side).
+         * The empty board is 0; use {@link #move} to follow a game instead of rehashing.
+         */
+        long key(long x, long o) {
+            long h = 0;
+            for (long m = x; m != 0; m &= m - 1) h ^= zobrist[2 * Long.numberOfTrailingZeros(m)];
+            for (long m = o; m != 0; m &= m - 1) h ^= zobrist[2 * Long.numberOfTrailingZeros(m) + 1];
+            return h;
+        }
+
+        /** Key after X (or O) takes {@code cell}: one XOR, so loops carry the key move by move. */
+        long move(long key, int cell, boolean x) { return key ^ zobrist[2 * cell + (x ? 0 : 1)]; }
+
+        /** rows | cols << 8 | k << 16; stored in saved tables to check they match the board. */
+        int packed() { return rows | cols << 8 | k << 16; }
+
+        /** The file the GUI loads and saves this board's table from. */
+        String tableFile() { return isClassic() ? QTABLE_FILE : "ttt_qtable_" + this + ".bin"; }
+        /** The file the GUI loads and saves this board's Q-network from. */
+        String netFile() { return "ttt_qnet_" + this + ".bin"; }
+
+        /** SplitMix64 finalizer. */
+        private static long mix64(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        @Override public boolean equals(Object other) {
+            return other instanceof Geometry && ((Geometry) other).packed() == packed();
+        }
+        @Override public int hashCode() { return packed(); }
+        @Override public String toString() { return rows + "x" + cols + "x" + k; }
+    }
+
+    // ========= Bounded hashed Q-table =========
+    /**
+     * Q-values for boards too large to index densely. Rows live in a fixed pool of
+     * {@code maxStates} frames (one flat double[]) and are found through an
+     * open-addressing index of 64-bit state keys (linear probing, at most half
+     * full). Once every frame is taken, a CLOCK hand picks the row to evict: each
+     * access raises its frame's use count (capped at 3), the sweeping hand lowers
+     * it, and the first frame found at zero is reused. Rarely visited states go
+     * first. Frames never move, so a frame index stays valid until that frame is
+     * evicted. Not thread-safe.
+     */
+    static final class HashedQTable {
+        private static final byte MAX_USE = 3;
+
+        final int actions, maxStates;
+        final double[] values;
+        private final long[] frameKey;
+        private final byte[] use;
+        private final long[] slotKey;
+        private final int[] slotFrame; // frame + 1; 0 marks an empty slot
+        private final int mask;
+        private int size, hand;
+        private long evictions;
+
+        HashedQTable(int actions, int maxStates) {
+            if (maxStates < 1 || maxStates > (1 << 28) || (long) maxStates * actions > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Unsupported table size: " + maxStates + " states of " + actions + " actions");
+            }
+            this.actions = actions;
+            this.maxStates = maxStates;
+            values = new double[maxStates * actions];
+            frameKey = new long[maxStates];
+            use = new byte[maxStates];
+            int capacity = Integer.highestOneBit(2 * maxStates - 1) << 1;
+            slotKey = new long[capacity];
+            slotFrame = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        private int home(long key) { return (int) (key ^ (key >>> 32)) & mask; }
+
+        /** Frame holding key's row, or -1 if the state is not in the table. */
+        int find(long key) {
+            for (int i = home(key); slotFrame[i] != 0; i = (i + 1) & mask) {
+                if (slotKey[i] == key) return slotFrame[i] - 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Frame holding key's row, first inserting a fresh one (0.0 for the moves in
+         * {@code legal}, -inf for the rest) if the state is new; may evict another row.
+         */
+        int acquire(long key, long legal) {
+            int i = home(key);
+            for (; slotFrame[i] != 0; i = (i + 1) & mask) {
+                if (slotKey[i] == key) {
+                    int f = slotFrame[i] - 1;
+                    if (use[f] < MAX_USE) use[f]++;
+                    return f;
+                }
+            }
+            int f;
+            if (size < maxStates) {
+                f = size++;
+            } else {
+                f = evict();
+                for (i = home(key); slotFrame[i] != 0; i = (i + 1) & mask) { } // the eviction may have shifted slots
+            }
+            slotKey[i] = key;
+            slotFrame[i] = f + 1;
+            frameKey[f] = key;
+            use[f] = 1;
+            for (int a = 0, base = f * actions; a < actions; a++) {
+                values[base + a] = ((legal >>> a) & 1) != 0 ? 0.0 : Double.NEGATIVE_INFINITY;
+            }
+            return f;
+        }
+
+        private int evict() {
+            while (true) {
+                int f = hand;
+                hand = (hand + 1 == maxStates) ? 0 : hand + 1;
+                if (use[f] == 0) {
+                    unindex(frameKey[f]);
+                    evictions++;
+                    return f;
+                }
+                use[f]--;
+            }
+        }
+
+        /** Removes a present key from the index, shifting later probes back over the hole. */
+        private void unindex(long key) {
+            int i = home(key);
+            while (slotFrame[i] == 0 || slotKey[i] != key) i = (i + 1) & mask;
+            for (int j = (i + 1) & mask; slotFrame[j] != 0; j = (j + 1) & mask) {
+                // the entry at j may fill the hole unless its home lies cyclically in (i, j]
+                if (((j - home(slotKey[j])) & mask) >= ((j - i) & mask)) {
+                    slotKey[i] = slotKey[j];
+                    slotFrame[i] = slotFrame[j];
+                    i = j;
+                }
+            }
+            slotFrame[i] = 0;
+        }
+
+        void clear() {
+            java.util.Arrays.fill(slotFrame, 0);
+            size = 0;
+            hand = 0;
+            evictions = 0;
+        }
+
+        int size() { return size; }
+        long evictions() { return evictions; }
+        long frameKey(int frame) { return frameKey[frame]; }
+
+        long footprintBytes() {
+            return 8L * values.length + 9L * maxStates + 12L * slotKey.length;
+        }
+    }
+
+    // ========= Q-table file format =========
+    /**
+     * Binary Q-table layout (little-endian), version 1:
+     * <pre>
+     *   header (64 bytes): int magic 'TTTQ', int version, int flags (bit 0 = D4 canonical),
+     *                      int actions per row, int record count, int reserved,
+     *                      double alpha, gamma, epsilon, epsilonDecay, epsilonMin
+     *   records (80 bytes each): int state code, int legal-move mask, double[9] Q-values
+     * </pre>
+     * Version 2 holds a hashed table for any m,n,k board (see MnkAgent): same header,
+     * with "actions" = cells, no flags and the geometry packed into the reserved int,
+     * then records of long Zobrist key plus double[cells] Q-values.
+     * Version 3 holds the weights of a Q-network (see QNetAgent): same header, with
+     * "actions" = cells, the record count = hidden units (0 = linear) and the
+     * geometry in the reserved int, then the float arrays w1, b1, w2, b2 back to back.
+     * Both strides keep every double 8-byte aligned, so the file can be read straight
+     * out of a memory mapping.
+     */
+    static final class QTableFile {
+        static final int MAGIC = 0x51545454; // "TTTQ" when read little-endian
+        static final int VERSION = 1;
+        static final int VERSION_HASHED = 2;
+        static final int VERSION_NET = 3;
+        static final int FLAG_CANONICAL = 1;
+        static final int HEADER = 64;
+        static final int STRIDE = 8 + 8 * DenseQTable.ACTIONS;
+
+        static int hashedStride(int actions) { return 8 + 8 * actions; }
+    }
+
+    // ========= Training modes =========
+    enum TrainMode {
+        SELF_PLAY("Self-Play (strong)", "selfplay"),
+        LEGACY("Random X vs Agent O (legacy)", "legacy"),
+        VS_SOLVER("Agent vs ε-Perfect Solver", "solver"),
+        VALUE_ITERATION("Value Iteration (full sweeps)", "vi");
+
+        final String label;
+        final String cliName;
+
+        TrainMode(String label, String cliName) { this.label = label; this.cliName = cliName; }
+
+        /** False for VALUE_ITERATION, which sweeps the whole table instead of playing episodes. */
+        boolean episodic() { return this != VALUE_ITERATION; }
+
+        static TrainMode fromCli(String name) {
+            for (TrainMode m : values()) if (m.cliName.equals(name)) return m;
+            throw new IllegalArgumentException("Unknown mode: " + name);
+        }
+
+        @Override public String toString() { return label; }
+    }
+
+    // ========= Learning rules =========
+    enum LearningRule {
+        ONE_STEP("One-step Q-learning", "onestep"),
+        N_STEP("n-step returns", "nstep"),
+        LAMBDA("Q(λ) eligibility traces", "lambda");
+
+        final String label;
+        final String cliName;
+
+        LearningRule(String label, String cliName) { this.label = label; this.cliName = cliName; }
+
+        static LearningRule fromCli(String name) {
+            for (LearningRule r : values()) if (r.cliName.equals(name)) return r;
+            throw new IllegalArgumentException("Unknown learning rule: " + name);
+        }
+
+        @Override public String toString() { return label; }
+    }
+
+    /**
+     * How training turns moves into Q updates: the rule, with n (N_STEP) or lambda
+     * (LAMBDA), and optional experience replay. With replay, each worker keeps its
+     * last {@code replayCapacity} one-step transitions and replays {@code replayBatch}
+     * randomly chosen ones after every episode. Immutable.
+     */
+    static final class Learning {
+        static final Learning DEFAULT = new Learning(LearningRule.ONE_STEP, 1, 0.0, 0, 0);
+
+        final LearningRule rule;
+        final int n;
+        final double lambda;
+        final int replayCapacity, replayBatch;
+
+        Learning(LearningRule rule, int n, double lambda, int replayCapacity, int replayBatch) {
+            if (n < 1 || n > DenseQTable.ACTIONS) throw new IllegalArgumentException("n must be between 1 and " + DenseQTable.ACTIONS + ": " + n);
+            if (!(lambda >= 0 && lambda <= 1)) throw new IllegalArgumentException("lambda must be between 0 and 1: " + lambda);
+            if (replayCapacity < 0 || replayBatch < 0) throw new IllegalArgumentException("Replay sizes must not be negative");
+            this.rule = rule;
+            this.n = n;
+            this.lambda = lambda;
+            this.replayCapacity = replayCapacity;
+            this.replayBatch = replayCapacity == 0 ? 0 : replayBatch;
+        }
+
+        @Override public String toString() {
+            String s = rule == LearningRule.N_STEP ? "nstep(n=" + n + ")"
+                     : rule == LearningRule.LAMBDA ? String.format("lambda(%.2f)", lambda) : rule.cliName;
+            return replayCapacity == 0 ? s : s + "+replay(" + replayCapacity + "x" + replayBatch + ")";
+        }
+    }
+
+    // ========= Exact solver =========
+    /**
+     * Exact game-theoretic values for every reachable position: negamax with
+     * alpha-beta over a transposition table keyed by state code, run once when the
+     * solver is first used. After that, value, optimal-move and best-move queries
+     * are single array reads. Values are from the side to move: +1 win, 0 draw, -1 loss.
+     */
+    static final class Solver {
+        private static final byte EMPTY = 0, EXACT = 1, LOWER = 2, UPPER = 3;
+        private static final int[] MOVE_ORDER = {4, 0, 2, 6, 8, 1, 3, 5, 7}; // center, corners, edges
+
+        private final byte[] ttValue = new byte[DenseQTable.STATES];
+        private final byte[] ttFlag = new byte[DenseQTable.STATES];
+        private final byte[] value = new byte[DenseQTable.STATES];
+        private final short[] optimal = new short[DenseQTable.STATES];
+        private final int[] reachable = reachableCodes(false);
+        private long nodes;
+
+        private static final class Holder { static final Solver INSTANCE = new Solver(); }
+        static Solver get() { return Holder.INSTANCE; }
+
+        private Solver() {
+            for (int c : reachable) {
+                int x = decodeX(c), o = decodeO(c);
+                boolean xToMove = Integer.bitCount(x) == Integer.bitCount(o);
+                int best = -2, mask = 0;
+                for (int m = legalMask(x, o); m != 0; m &= m - 1) {
+                    int bit = m & -m;
+                    int v = xToMove ? moveValue(x | bit, o, true) : moveValue(x, o | bit, false);
+                    if (v > best) { best = v; mask = 0; }
+                    if (v == best) mask |= bit;
+                }
+                value[c] = (byte) best;
+                optimal[c] = (short) mask;
+            }
+        }
+
+        /** Value, for the player who just moved, of the position after that move. */
+        private int moveValue(int x, int o, boolean xMoved) {
+            if (WINS[xMoved ? x : o]) return 1;
+            if ((x | o) == FULL) return 0;
+            return -negamax(x, o, -1, 1);
+        }
+
+        /** moveValue once the constructor has filled value[]: a read, no search. */
+        private int solvedMoveValue(int x, int o, boolean xMoved) {
+            if (WINS[xMoved ? x : o]) return 1;
+            if ((x | o) == FULL) return 0;
+            return -value[code(x, o)];
+        }
+
+        private int negamax(int x, int o, int alpha, int beta) {
+            int c = code(x, o);
+            int alpha0 = alpha;
+            byte flag = ttFlag[c];
+            if (flag != EMPTY) {
+                int v = ttValue[c];
+                if (flag == EXACT) return v;
+                if (flag == LOWER) alpha = Math.max(alpha, v); else beta = Math.min(beta, v);
+                if (alpha >= beta) return v;
+            }
+            nodes++;
+            boolean xToMove = Integer.bitCount(x) == Integer.bitCount(o);
+            int legal = legalMask(x, o), best = -2;
+            for (int i : MOVE_ORDER) {
+                int bit = 1 << i;
+                if ((legal & bit) == 0) continue;
+                int v;
+                if (WINS[(xToMove ? x : o) | bit]) v = 1;
+                else if (((x | o) | bit) == FULL) v = 0;
+                else v = xToMove ? -negamax(x | bit, o, -beta, -alpha) : -negamax(x, o | bit, -beta, -alpha);
+                if (v > best) best = v;
+                if (best > alpha) alpha = best;
+                if (alpha >= beta) break;
+            }
+            ttValue[c] = (byte) best;
+            ttFlag[c] = best <= alpha0 ? UPPER : best >= beta ? LOWER : EXACT;
+            return best;
+        }
+
+        /** Game value for the side to move in a reachable, non-terminal state. */
+        int value(int code) { return value[code]; }
+        /** Bitmask of the moves that achieve value(code). */
+        int optimalMoves(int code) { return optimal[code]; }
+        int bestMove(int code, Random rnd) {
+            int mask = optimal[code];
+            return nthLegal(mask, rnd.nextInt(Integer.bitCount(mask)));
+        }
+        long nodesSearched() { return nodes; }
+
+        static final class Gap {
+            final int states, suboptimal, losing;
+            Gap(int states, int suboptimal, int losing) { this.states = states; this.suboptimal = suboptimal; this.losing = losing; }
+            double rate() { return states == 0 ? 0 : suboptimal / (double) states; }
+        }
+
+        /**
+         * Checks the agent's greedy move in every reachable non-terminal position:
+         * {@code suboptimal} counts moves outside the optimal set, {@code losing}
+         * those that turn a won or drawn position into a lost one. Read-only, so
+         * safe to call from many threads at once.
+         */
+        Gap optimalityGap(QLearningAgent agent) {
+            int suboptimal = 0, losing = 0;
+            for (int c : reachable) {
+                int a = agent.greedyAction(c);
+                if ((optimal[c] & (1 << a)) != 0) continue;
+                suboptimal++;
+                int x = decodeX(c), o = decodeO(c);
+                boolean xToMove = Integer.bitCount(x) == Integer.bitCount(o);
+                int v = xToMove ? solvedMoveValue(x | 1 << a, o, true) : solvedMoveValue(x, o | 1 << a, false);
+                if (v < 0 && value[c] >= 0) losing++;
+            }
+            return new Gap(reachable.length, suboptimal, losing);
+        }
+    }
+
+    // ========= Q-table snapshots =========
+    /**
+     * Immutable copy of an agent's Q-table, published (via a volatile reference)
+     * for readers on other threads, such as the overlay and tooltips on the EDT,
+     * while trainers keep writing the live table. Readers never lock and never see
+     * a row change under them. Each publication gets a larger epoch number.
+     */
+    static final class QSnapshot {
+        final long epoch;
+        final int size;
+        private final double[] values;
+        private final boolean[] seen;
+        private final boolean canonical;
+        private final double alpha, gamma, epsilon, epsilonDecay, epsilonMin;
+
+        QSnapshot(long epoch, QLearningAgent agent) {
+            this.epoch = epoch;
+            this.values = agent.q.values.clone();
+            this.seen = agent.q.seen.clone();
+            this.canonical = agent.canonical;
+            this.alpha = agent.alpha;
+            this.gamma = agent.gamma;
+            this.epsilon = agent.epsilon;
+            this.epsilonDecay = agent.epsilonDecay;
+            this.epsilonMin = agent.epsilonMin;
+            int n = 0;
+            for (boolean b : seen) if (b) n++;
+            this.size = n;
+        }
+
+        /**
+         * The snapshot in the binary format (see QTableFile): a fixed header with the
+         * hyperparameters, then one fixed-stride record per visited state.
+         */
+        ByteBuffer encode() {
+            ByteBuffer buf = ByteBuffer.allocate(QTableFile.HEADER + size * QTableFile.STRIDE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(QTableFile.MAGIC).putInt(QTableFile.VERSION)
+               .putInt(canonical ? QTableFile.FLAG_CANONICAL : 0).putInt(DenseQTable.ACTIONS)
+               .putInt(size).putInt(0)
+               .putDouble(alpha).putDouble(gamma).putDouble(epsilon).putDouble(epsilonDecay).putDouble(epsilonMin);
+            for (int s = 0; s < DenseQTable.STATES; s++) {
+                if (!seen[s]) continue;
+                buf.putInt(s).putInt(DenseQTable.LEGAL[s]);
+                for (int a = 0, base = s * DenseQTable.ACTIONS; a < DenseQTable.ACTIONS; a++) buf.putDouble(values[base + a]);
+            }
+            buf.flip();
+            return buf;
+        }
+
+        /**
+         * Largest and mean absolute change, since {@code before} (a snapshot of the same
+         * table), of the legal Q-values in the rows visited here.
+         */
+        double[] change(QSnapshot before) {
+            double max = 0, sum = 0;
+            long n = 0;
+            for (int k = 0; k < DenseQTable.STATES; k++) {
+                if (!seen[k]) continue;
+                for (int m = DenseQTable.LEGAL[k], base = k * DenseQTable.ACTIONS; m != 0; m &= m - 1) {
+                    int i = base + Integer.numberOfTrailingZeros(m);
+                    double d = Math.abs(values[i] - before.values[i]);
+                    if (d > max) max = d;
+                    sum += d;
+                    n++;
+                }
+            }
+            return new double[]{max, n == 0 ? 0.0 : sum / n};
+        }
+
+        /** Whether state code s (in any orientation) had been visited when this snapshot was taken. */
+        boolean visited(int s) { return seen[canonical ? D4.CANON[s] : s]; }
+
+        /** Q-row of state code s in real board orientation, or null if s was never visited. */
+        double[] row(int s) {
+            int k = canonical ? D4.CANON[s] : s;
+            if (!seen[k]) return null;
+            double[] row = new double[DenseQTable.ACTIONS];
+            int base = k * DenseQTable.ACTIONS;
+            if (!canonical) {
+                System.arraycopy(values, base, row, 0, row.length);
+            } else {
+                int[] perm = D4.PERM[D4.SYM[s]];
+                for (int a = 0; a < row.length; a++) row[a] = values[base + perm[a]];
+            }
+            return row;
+        }
+    }
+
+    /**
+     * Per-thread training context: the thread's own Random, unsynchronized telemetry
+     * buffer, per-player move history for n-step / Q(lambda), replay buffer, and
+     * trajectory-log recorder.
+     */
+    static final class Worker {
+        final Random rnd;
+        final TrainingStats.Local stats;
+        final Trajectory[] moves = {new Trajectory(), new Trajectory()};
+        Learning learning = Learning.DEFAULT;
+        ReplayBuffer replay;
+        TrajectoryLog.Recorder recorder;
+
+        Worker(Random rnd, TrainingStats.Local stats) { this.rnd = rnd; this.stats = stats; }
+
+        /** Adopts the agent's current learning settings and trajectory log (or none) for the next episode. */
+        void begin(Learning l, TrajectoryLog.Writer log) {
+            learning = l;
+            if (l.replayCapacity == 0) replay = null;
+            else if (replay == null || replay.capacity() != l.replayCapacity) replay = new ReplayBuffer(l.replayCapacity);
+            if (log == null) recorder = null;
+            else if (recorder == null || !recorder.writesTo(log)) recorder = log.recorder();
+            if (recorder != null) recorder.begin();
+        }
+
+        /** Hands the recorded episodes to the log and lets go of the recorder; call when the thread's run is over. */
+        void end() {
+            if (recorder != null) recorder.close();
+            recorder = null;
+        }
+    }
+
+    /**
+     * One player's moves so far in the current episode: pending (s, a, r, s') for
+     * n-step returns (oldest first), or table slots and eligibilities for Q(lambda).
+     * A player makes at most 5 moves on the 3x3 board.
+     */
+    static final class Trajectory {
+        final int[] s = new int[DenseQTable.ACTIONS], a = new int[DenseQTable.ACTIONS], sPrime = new int[DenseQTable.ACTIONS];
+        final double[] r = new double[DenseQTable.ACTIONS];
+        final int[] slot = new int[DenseQTable.ACTIONS];
+        final double[] e = new double[DenseQTable.ACTIONS];
+        int len;
+
+        void push(int s, int a, double r, int sPrime) {
+            this.s[len] = s; this.a[len] = a; this.r[len] = r; this.sPrime[len] = sPrime;
+            len++;
+        }
+
+        void drop() {
+            len--;
+            System.arraycopy(s, 1, s, 0, len);
+            System.arraycopy(a, 1, a, 0, len);
+            System.arraycopy(r, 1, r, 0, len);
+            System.arraycopy(sPrime, 1, sPrime, 0, len);
+        }
+
+        void trace(int slot) {
+            this.slot[len] = slot;
+            e[len] = 1.0;
+            len++;
+        }
+    }
+
+    /** Ring of the most recent one-step transitions in parallel primitive arrays (s' = TERMINAL at game end). */
+    static final class ReplayBuffer {
+        final int[] s, sPrime;
+        final byte[] a;
+        final double[] r;
+        private int next, size;
+
+        ReplayBuffer(int capacity) {
+            s = new int[capacity];
+            sPrime = new int[capacity];
+            a = new byte[capacity];
+            r = new double[capacity];
+        }
+
+        void add(int s, int a, double r, int sPrime) {
+            this.s[next] = s; this.a[next] = (byte) a; this.r[next] = r; this.sPrime[next] = sPrime;
+            if (++next == this.s.length) next = 0;
+            if (size < this.s.length) size++;
+        }
+
+        int size() { return size; }
+        int capacity() { return s.length; }
+    }
+
+    // ========= Agents =========
+    /**
+     * A move-choosing engine the GUI, trainers and evaluators can swap: the learned
+     * tables (QLearningAgent, MnkAgent) and the search engine (Mcts). Positions are
+     * bitboards of the agent's geometry, and the side to move is the one with fewer
+     * stones (X on ties).
+     */
+    interface Agent {
+        String name();
+        Geometry geometry();
+        /** The agent's move for the side to move, without exploration. */
+        int chooseMove(long x, long o, Random rnd);
+        /** Per-cell move scores in [-1, 1] for the overlay (NEGATIVE_INFINITY = none), or null if it has none for this position. */
+        double[] peekValues(long x, long o);
+    }
+
+    /** An agent that improves by playing: the Q-tables and the Q-network, but not the search. */
+    interface Learner extends Agent {
+        /** One training episode of the given mode; returns the winner or ' '. */
+        char trainOneEpisode(TrainMode mode);
+    }
+
+    // ========= Q-Learning Agent =========
+    static class QLearningAgent implements Serializable, Learner {
+        private static final long serialVersionUID = 1L;
+
+        // On-disk form stays the original one (q as a HashMap<String,double[]>), so
+        // tables saved before the dense backend still load and vice versa.
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("me", char.class),
+                new ObjectStreamField("opp", char.class),
+                new ObjectStreamField("alpha", double.class),
+                new ObjectStreamField("gamma", double.class),
+                new ObjectStreamField("epsilon", double.class),
+                new ObjectStreamField("epsilonDecay", double.class),
+                new ObjectStreamField("epsilonMin", double.class),
+                new ObjectStreamField("canonical", boolean.class),
+                new ObjectStreamField("q", Map.class)
+        };
+
+        private char me;
+        private char opp;
+        private double alpha = 0.5;
+        private double gamma = 0.9;
+        private volatile double epsilon = 0.2;
+        private double epsilonDecay = 0.99995; // per episode
+        private double epsilonMin = 0.05;
+        // When set, rows are stored once per D4 class (see D4) and actions are
+        // permuted into/out of the canonical frame on every access.
+        private boolean canonical = false;
+
+        private transient DenseQTable q = new DenseQTable();
+        private transient TrainingStats stats = new TrainingStats(this);
+        private transient Worker worker = newWorker(new Random());
+        private transient volatile QSnapshot published;
+        private transient long snapshotEpoch;
+        private transient double solverEpsilon = 0.1;
+        private transient volatile Learning learning = Learning.DEFAULT;
+        private transient volatile TrajectoryLog.Writer recording;
+
+        QLearningAgent(char me, char opp) { this.me = me; this.opp = opp; }
+
+        int chooseAction(int s, double epsilonOverride) {
+            return chooseAction(s, epsilonOverride, worker.rnd);
+        }
+
+        int chooseAction(int s, double epsilonOverride, Random rnd) {
+            ensureState(s);
+            int legal = DenseQTable.LEGAL[s];
+            double eps = (epsilonOverride >= 0) ? epsilonOverride : epsilon;
+            if (legal != 0 && rnd.nextDouble() < eps) {
+                return nthLegal(legal, rnd.nextInt(Integer.bitCount(legal)));
+            }
+            return greedyAction(s);
+        }
+
+        /** Best-valued legal move in state s; reads the table without marking s as visited. */
+        int greedyAction(int s) {
+            int legal = DenseQTable.LEGAL[s];
+            double[] v = q.values;
+            int best = Integer.numberOfTrailingZeros(legal);
+            double bestQ = -1e9;
+            for (int m = legal; m != 0; m &= m - 1) {
+                int a = Integer.numberOfTrailingZeros(m);
+                int i = slot(s, a);
+                if (v[i] > bestQ) { bestQ = v[i]; best = a; }
+            }
+            return best;
+        }
+
+        /** Legacy trainer: Random X vs Agent O */
+        void trainOneEpisode() {
+            playEpisode(TrainMode.LEGACY, worker);
+            epsilon = Math.max(epsilonMin, epsilon * epsilonDecay);
+        }
+
+        /** Strong trainer: Self-play with one shared Q-table (X and O). */
+        void trainSelfPlaySmartOneEpisode() {
+            playEpisode(TrainMode.SELF_PLAY, worker);
+            epsilon = Math.max(epsilonMin, epsilon * epsilonDecay);
+        }
+
+        /** One episode of the given mode, with the usual epsilon decay. */
+        @Override public char trainOneEpisode(TrainMode mode) {
+            char winner = playEpisode(mode, worker);
+            epsilon = Math.max(epsilonMin, epsilon * epsilonDecay);
+            return winner;
+        }
+
+        // ---- Agent ----
+        @Override public String name() { return "Q-table"; }
+        @Override public Geometry geometry() { return Geometry.CLASSIC; }
+        @Override public int chooseMove(long x, long o, Random rnd) { return greedyAction(code((int) x, (int) o)); }
+        @Override public double[] peekValues(long x, long o) { return snapshot().row(code((int) x, (int) o)); }
+
+        /** Per-thread training context for this agent: its own Random and telemetry buffer. */
+        Worker newWorker(Random rnd) { return new Worker(rnd, stats.local()); }
+
+        TrainingStats stats() { return stats; }
+
+        char playEpisode(TrainMode mode, Worker w) {
+            w.begin(learning, recording);
+            char winner;
+            switch (mode) {
+                case SELF_PLAY: winner = playSelfPlayEpisode(w); break;
+                case LEGACY:    winner = playLegacyEpisode(w); break;
+                case VS_SOLVER: winner = playVsSolverEpisode(w); break;
+                default: throw new IllegalArgumentException(mode + " does not play episodes; see ValueIteration");
+            }
+            finishEpisode(w);
+            if (w.recorder != null) w.recorder.end(winner);
+            w.stats.episode(winner);
+            return winner;
+        }
+
+        /**
+         * Feeds one recorded episode (the records [from, to) of a trajectory log) to the
+         * learning rule in its recorded order, as if it had just been played, and returns
+         * its winner. No moves are chosen, so epsilon is neither used nor decayed.
+         */
+        char replayEpisode(Worker w, ByteBuffer log, int from, int to) {
+            w.begin(learning, null);
+            for (int p = from; p < to; p += TrajectoryLog.RECORD) {
+                learn(w, log.get(p + 5), log.getShort(p), log.get(p + 4), log.get(p + 6), log.getShort(p + 2));
+            }
+            finishEpisode(w);
+            char winner = TrajectoryLog.winner(log.get(from + 7));
+            w.stats.episode(winner);
+            return winner;
+        }
+
+        /** Trajectory log every episode played from now on is appended to, or null for none. */
+        void setRecording(TrajectoryLog.Writer log) { this.recording = log; }
+
+        /** Learning rule (and replay) used by episodes that start after this call. */
+        void setLearning(Learning learning) { this.learning = learning; }
+        Learning getLearning() { return learning; }
+
+        /** Probability that the solver opponent plays a random move instead of an optimal one. */
+        void setSolverEpsilon(double solverEpsilon) { this.solverEpsilon = solverEpsilon; }
+
+        /**
+         * Sets epsilon to where the per-episode decay would have left it after
+         * {@code episodes} episodes from {@code start}; parallel workers use this
+         * instead of racing on the multiplicative update.
+         */
+        void decayEpsilon(double start, long episodes) {
+            epsilon = Math.max(epsilonMin, start * Math.pow(epsilonDecay, episodes));
+        }
+
+        /** Sets epsilon outright, bypassing the decay (see Convergence). */
+        void setEpsilon(double epsilon) { this.epsilon = epsilon; }
+
+        double getEpsilon() { return epsilon; }
+        double getAlpha() { return alpha; }
+        double getGamma() { return gamma; }
+        double getEpsilonDecay() { return epsilonDecay; }
+        double getEpsilonMin() { return epsilonMin; }
+
+        void setHyperparameters(double alpha, double gamma, double epsilon, double epsilonDecay, double epsilonMin) {
+            this.alpha = alpha;
+            this.gamma = gamma;
+            this.epsilon = epsilon;
+            this.epsilonDecay = epsilonDecay;
+            this.epsilonMin = epsilonMin;
+        }
+
+        String describeHyperparameters() {
+            return String.format("alpha=%.3f gamma=%.3f epsilon=%.4f decay=%.6f floor=%.3f symmetry=%s learning=%s",
+                    alpha, gamma, epsilon, epsilonDecay, epsilonMin, canonical ? "on" : "off", learning);
+        }
+
+        // One episode of each trainer, without the epsilon decay; safe to run
+        // concurrently on a shared table as long as each thread has its own Worker.
+        // All return the winner ('X'/'O') or ' ' for a draw.
+        char playLegacyEpisode(Worker w) {
+            final Random rnd = w.rnd;
+            int x = 0, o = 0, s = 0; // s = code(x, o), kept up to date move by move
+            char cur = 'X';
+            int sO = -1, aO = -1;
+
+            while (true) {
+                int legal = legalMask(x, o);
+                if (legal == 0) break;
+                if (cur == 'X') {
+                    int a = nthLegal(legal, rnd.nextInt(Integer.bitCount(legal)));
+                    x |= 1 << a; s += POW3[a]; cur = 'O';
+                } else {
+                    int a = chooseAction(s, -1, rnd);
+                    sO = s; aO = a;
+                    o |= 1 << a; s += 2 * POW3[a]; cur = 'X';
+                }
+                char winner = winnerOf(x, o);
+                if (winner != ' ' || (x | o) == FULL) {
+                    double r = (winner == ' ') ? 0.0 : (winner == 'O' ? +1.0 : -1.0);
+                    if (sO >= 0) learn(w, 0, sO, aO, r, TERMINAL);
+                    return winner;
+                }
+                if (sO >= 0 && cur == 'X') {
+                    learn(w, 0, sO, aO, 0.0, s);
+                    sO = -1; aO = -1;
+                }
+            }
+            return ' ';
+        }
+
+        /**
+         * Agent (random side each episode) against the exact solver, which plays a
+         * random legal move with probability solverEpsilon. Only the agent's moves
+         * are learned, with the opponent's reply folded into the next state as in
+         * the legacy trainer.
+         */
+        char playVsSolverEpisode(Worker w) {
+            final Random rnd = w.rnd;
+            Solver solver = Solver.get();
+            final boolean agentIsX = rnd.nextBoolean();
+            int x = 0, o = 0, s = 0; // s = code(x, o)
+            boolean xToMove = true;
+            int sA = -1, aA = -1;
+
+            while (true) {
+                int legal = legalMask(x, o);
+                if (legal == 0) break;
+                boolean agentTurn = (xToMove == agentIsX);
+                int a;
+                if (agentTurn) {
+                    a = chooseAction(s, -1, rnd);
+                    sA = s; aA = a;
+                } else if (rnd.nextDouble() < solverEpsilon) {
+                    a = nthLegal(legal, rnd.nextInt(Integer.bitCount(legal)));
+                } else {
+                    a = solver.bestMove(s, rnd);
+                }
+                if (xToMove) { x |= 1 << a; s += POW3[a]; }
+                else         { o |= 1 << a; s += 2 * POW3[a]; }
+                xToMove = !xToMove;
+
+                char winner = winnerOf(x, o);
+                if (winner != ' ' || (x | o) == FULL) {
+                    double r = (winner == ' ') ? 0.0 : ((winner == 'X') == agentIsX ? +1.0 : -1.0);
+                    if (sA >= 0) learn(w, 0, sA, aA, r, TERMINAL);
+                    return winner;
+                }
+                if (sA >= 0 && !agentTurn) {
+                    learn(w, 0, sA, aA, 0.0, s);
+                    sA = -1; aA = -1;
+                }
+            }
+            return ' ';
+        }
+
+        char playSelfPlayEpisode(Worker w) {
+            final Random rnd = w.rnd;
+            int x = 0, o = 0, sNext = 0; // sNext = code(x, o)
+            char cur = 'X';
+            int sPrevX = -1, sPrevO = -1;
+            int aPrevX = -1, aPrevO = -1;
+
+            while (true) {
+                if (legalMask(x, o) == 0) break;
+
+                int s = sNext;
+                int a = chooseAction(s, -1, rnd);
+                if (cur == 'X') { x |= 1 << a; sNext += POW3[a]; }
+                else            { o |= 1 << a; sNext += 2 * POW3[a]; }
+
+                char winner = winnerOf(x, o);
+                boolean terminal = (winner != ' ') || (x | o) == FULL;
+
+                if (cur == 'X') {
+                    if (sPrevX >= 0 && !terminal) {
+                        learn(w, 0, sPrevX, aPrevX, 0.0, sNext);
+                    }
+                    sPrevX = s; aPrevX = a;
+                } else {
+                    if (sPrevO >= 0 && !terminal) {
+                        learn(w, 1, sPrevO, aPrevO, 0.0, sNext);
+                    }
+                    sPrevO = s; aPrevO = a;
+                }
+
+                if (terminal) {
+                    double rX = 0.0, rO = 0.0;
+                    if (winner != ' ') {
+                        if (winner == 'X') { rX = +1.0; rO = -1.0; } else { rX = -1.0; rO = +1.0; }
+                    }
+                    if (sPrevX >= 0) learn(w, 0, sPrevX, aPrevX, rX, TERMINAL);
+                    if (sPrevO >= 0) learn(w, 1, sPrevO, aPrevO, rO, TERMINAL);
+                    return winner;
+                }
+                cur = (cur == 'X') ? 'O' : 'X';
+            }
+            return ' ';
+        }
+
+        // ---- Learning rules ----
+        /**
+         * Hands one move of {@code player} (0 = X or the lone learner, 1 = O in self-play)
+         * to the episode's learning rule: s, a, the reward and the next state, or
+         * TERMINAL. Every one-step transition is also recorded for replay, and in the
+         * trajectory log, when they are on.
+         */
+        private void learn(Worker w, int player, int s, int a, double r, int sPrime) {
+            Learning l = w.learning;
+            if (w.replay != null) w.replay.add(s, a, r, sPrime);
+            if (w.recorder != null) w.recorder.record(player, s, a, r, sPrime);
+            switch (l.rule) {
+                case ONE_STEP: w.stats.td(sPrime == TERMINAL ? updateQTerminal(s, a, r) : updateQ(s, a, r, sPrime)); break;
+                case N_STEP:   learnNStep(w, w.moves[player], s, a, r, sPrime, l.n); break;
+                case LAMBDA:   learnLambda(w, w.moves[player], s, a, r, sPrime, l.lambda); break;
+                default: throw new IllegalStateException(String.valueOf(l.rule));
+            }
+        }
+
+        private void learnNStep(Worker w, Trajectory t, int s, int a, double r, int sPrime, int n) {
+            t.push(s, a, r, sPrime);
+            if (sPrime == TERMINAL) {
+                while (t.len > 0) nStepUpdate(w, t, t.len);
+            } else if (t.len == n) {
+                nStepUpdate(w, t, n);
+            }
+        }
+
+        /**
+         * Backs up the oldest pending move with the discounted rewards of the next
+         * {@code k} moves, plus gamma^k * max Q of the k-th move's next state unless
+         * that move ended the game, then drops it.
+         */
+        private void nStepUpdate(Worker w, Trajectory t, int k) {
+            double g = 0, discount = 1;
+            for (int j = 0; j < k; j++) { g += discount * t.r[j]; discount *= gamma; }
+            int last = t.sPrime[k - 1];
+            ensureState(t.s[0]);
+            if (last != TERMINAL) { ensureState(last); g += discount * maxOverLegal(last); }
+            int i = slot(t.s[0], t.a[0]);
+            double td = g - q.values[i];
+            q.values[i] += alpha * td;
+            w.stats.td(td);
+            t.drop();
+        }
+
+        /**
+         * Q(lambda) with replacing traces, without Watkins' cut after exploratory moves:
+         * the TD error of this move also updates the player's earlier moves this
+         * episode, each weighted by (gamma * lambda)^age.
+         */
+        private void learnLambda(Worker w, Trajectory t, int s, int a, double r, int sPrime, double lambda) {
+            ensureState(s);
+            double target = r;
+            if (sPrime != TERMINAL) { ensureState(sPrime); target += gamma * maxOverLegal(sPrime); }
+            int i = slot(s, a);
+            double td = target - q.values[i];
+            t.trace(i);
+            final double decay = gamma * lambda;
+            for (int k = 0; k < t.len; k++) {
+                q.values[t.slot[k]] += alpha * td * t.e[k];
+                t.e[k] *= decay;
+            }
+            w.stats.td(td);
+        }
+
+        /** Settles n-step moves still pending (bootstrapping from their last next state), clears traces, replays. */
+        private void finishEpisode(Worker w) {
+            for (Trajectory t : w.moves) {
+                if (w.learning.rule == LearningRule.N_STEP) while (t.len > 0) nStepUpdate(w, t, t.len);
+                t.len = 0;
+            }
+            if (w.replay == null) return;
+            ReplayBuffer b = w.replay;
+            for (int k = 0, n = b.size(); n > 0 && k < w.learning.replayBatch; k++) {
+                int j = w.rnd.nextInt(n);
+                int sPrime = b.sPrime[j];
+                w.stats.td(sPrime == TERMINAL ? updateQTerminal(b.s[j], b.a[j], b.r[j]) : updateQ(b.s[j], b.a[j], b.r[j], sPrime));
+            }
+        }
+
+        // ---- Q-learning updates (both return the TD error) ----
+        private double updateQ(int s, int a, double r, int sPrime) {
+            ensureState(s);
+            ensureState(sPrime);
+            double maxNext = maxOverLegal(sPrime);
+            int i = slot(s, a);
+            double td = r + gamma * maxNext - q.values[i];
+            q.values[i] += alpha * td;
+            return td;
+        }
+        private double updateQTerminal(int s, int a, double r) {
+            ensureState(s);
+            int i = slot(s, a);
+            double td = r - q.values[i];
+            q.values[i] += alpha * td;
+            return td;
+        }
+
+        // ---- Value iteration ----
+        /**
+         * Full-width version of the legacy target for every legal move a in state s
+         * (s a row key): r if a ends the game, otherwise the opponent's reply that is
+         * worst for the mover, scored -1 / 0 if it ends the game and gamma * max Q of
+         * the position after it if not. Q values are read from {@code from} and written
+         * to the live table, which may be the same array (Gauss-Seidel). Returns the
+         * largest change.
+         */
+        double backup(int s, double[] from) {
+            int x = decodeX(s), o = decodeO(s);
+            boolean xToMove = Integer.bitCount(x) == Integer.bitCount(o);
+            int me = xToMove ? x : o, opp = xToMove ? o : x;
+            double delta = 0;
+            for (int m = legalMask(x, o); m != 0; m &= m - 1) {
+                int bit = m & -m, me2 = me | bit;
+                double target;
+                if (WINS[me2]) target = 1.0;
+                else if ((me2 | opp) == FULL) target = 0.0;
+                else {
+                    target = Double.POSITIVE_INFINITY;
+                    for (int r = legalMask(me2, opp); r != 0; r &= r - 1) {
+                        int opp2 = opp | (r & -r);
+                        double v;
+                        if (WINS[opp2]) v = -1.0;
+                        else if ((me2 | opp2) == FULL) v = 0.0;
+                        else v = gamma * maxOver(from, xToMove ? code(me2, opp2) : code(opp2, me2));
+                        if (v < target) target = v;
+                    }
+                }
+                int i = slot(s, Integer.numberOfTrailingZeros(bit));
+                delta = Math.max(delta, Math.abs(target - q.values[i]));
+                q.values[i] = target;
+            }
+            ensureState(s);
+            return delta;
+        }
+
+        /** Rows value iteration sweeps: reachable non-terminal row keys, deepest positions first. */
+        int[] sweepOrder() {
+            return IntStream.of(reachableCodes(false)).filter(c -> key(c) == c).boxed()
+                    .sorted((a, b) -> Integer.bitCount(decodeX(b) | decodeO(b)) - Integer.bitCount(decodeX(a) | decodeO(a)))
+                    .mapToInt(Integer::intValue).toArray();
+        }
+
+        double[] tableValues() { return q.values; }
+
+        // ---- Q-table helpers ----
+        private int key(int s) { return canonical ? D4.CANON[s] : s; }
+        /** Index into the table of action a (real board frame) in state s. */
+        private int slot(int s, int a) {
+            if (!canonical) return s * DenseQTable.ACTIONS + a;
+            return D4.CANON[s] * DenseQTable.ACTIONS + D4.PERM[D4.SYM[s]][a];
+        }
+        private void ensureState(int s) {
+            q.markSeen(key(s));
+        }
+        private double maxOverLegal(int sPrime) { return maxOver(q.values, sPrime); }
+        private double maxOver(double[] v, int sPrime) {
+            // the legal set of the canonical row is the image of sPrime's, so max over it directly
+            int k = key(sPrime);
+            double best = -1e9;
+            int base = k * DenseQTable.ACTIONS;
+            for (int m = DenseQTable.LEGAL[k]; m != 0; m &= m - 1) {
+                best = Math.max(best, v[base + Integer.numberOfTrailingZeros(m)]);
+            }
+            if (best == -1e9) best = 0.0; // no legal actions (terminal)
+            return best;
+        }
+
+        // PUBLIC: read-only access for overlays / tooltips. Reads the last published
+        // snapshot, so it is safe on the EDT while trainer threads write the table.
+        double[] peekQRow(String state) {
+            return snapshot().row(encode(state));
+        }
+
+        /** Copies the live table into a new immutable snapshot and makes it the one readers see. */
+        synchronized QSnapshot publishSnapshot() {
+            QSnapshot snap = new QSnapshot(++snapshotEpoch, this);
+            published = snap;
+            return snap;
+        }
+
+        /** The latest published snapshot (publishing one first if there is none yet). */
+        QSnapshot snapshot() {
+            QSnapshot snap = published;
+            return (snap != null) ? snap : publishSnapshot();
+        }
+
+        int tableSize() { return q.size; }
+
+        long tableBytes() { return q.footprintBytes(); }
+
+        /** Re-derives the visited-state count, which concurrent first visits can undercount. */
+        void recountTable() { q.recount(); }
+
+        boolean isCanonical() { return canonical; }
+
+        /**
+         * Switches symmetry canonicalization on or off, re-keying what has been learned
+         * so far: enabling folds each visited state into its canonical row (the
+         * canonical state's own row wins if it was visited), disabling expands every
+         * canonical row back out to all of its symmetric images.
+         */
+        void setCanonical(boolean on) {
+            if (on == canonical) return;
+            DenseQTable old = q, next = new DenseQTable();
+            final int n = DenseQTable.ACTIONS;
+            if (on) {
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int s = 0; s < DenseQTable.STATES; s++) {
+                        int c = D4.CANON[s];
+                        if (!old.seen[s] || next.seen[c] || (pass == 0) != (c == s)) continue;
+                        int[] perm = D4.PERM[D4.SYM[s]];
+                        for (int a = 0; a < n; a++) next.values[c * n + perm[a]] = old.values[s * n + a];
+                        next.markSeen(c);
+                    }
+                }
+            } else {
+                for (int s = 0; s < DenseQTable.STATES; s++) {
+                    int c = D4.CANON[s];
+                    if (!old.seen[c]) continue;
+                    int[] perm = D4.PERM[D4.SYM[s]];
+                    for (int a = 0; a < n; a++) next.values[s * n + a] = old.values[c * n + perm[a]];
+                    next.markSeen(s);
+                }
+            }
+            q = next;
+            canonical = on;
+        }
+
+        // Persistence
+        /** Writes the table in the binary format (see QTableFile), atomically replacing {@code path}. */
+        void saveTo(String path) throws IOException {
+            QSnapshot snap;
+            synchronized (this) { snap = new QSnapshot(snapshotEpoch, this); }
+            Checkpointer.write(path, snap.encode(), 0);
+        }
+
+        /** Loads a binary table (memory-mapped) or a legacy Java-serialized one, by magic number. */
+        void loadFrom(String path) throws IOException, ClassNotFoundException {
+            File f = new File(path);
+            if (!f.exists()) return;
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                if (ch.size() < QTableFile.HEADER) { loadLegacy(f); return; }
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                if (buf.getInt(0) != QTableFile.MAGIC) { loadLegacy(f); return; }
+                if (buf.getInt(4) != QTableFile.VERSION || buf.getInt(12) != DenseQTable.ACTIONS) {
+                    throw new IOException(path + ": unsupported Q-table version or board size");
+                }
+                int count = buf.getInt(16);
+                if (count < 0 || count > DenseQTable.STATES || ch.size() != QTableFile.HEADER + (long) count * QTableFile.STRIDE) {
+                    throw new IOException(path + ": truncated or corrupt Q-table");
+                }
+                DenseQTable loaded = new DenseQTable();
+                for (int r = 0, off = QTableFile.HEADER; r < count; r++, off += QTableFile.STRIDE) {
+                    int s = buf.getInt(off);
+                    if (s < 0 || s >= DenseQTable.STATES) throw new IOException(path + ": bad state code " + s);
+                    for (int a = 0, base = s * DenseQTable.ACTIONS; a < DenseQTable.ACTIONS; a++) {
+                        loaded.values[base + a] = buf.getDouble(off + 8 + 8 * a);
+                    }
+                    loaded.markSeen(s);
+                }
+                this.q = loaded;
+                this.canonical = (buf.getInt(8) & QTableFile.FLAG_CANONICAL) != 0;
+                this.alpha = buf.getDouble(24);
+                this.gamma = buf.getDouble(32);
+                this.epsilon = buf.getDouble(40);
+                this.epsilonDecay = buf.getDouble(48);
+                this.epsilonMin = buf.getDouble(56);
+            }
+        }
+
+        private void loadLegacy(File f) throws IOException, ClassNotFoundException {
+            try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(f))) {
+                QLearningAgent loaded = (QLearningAgent) in.readObject();
+                this.q = loaded.q;
+                this.alpha = loaded.alpha;
+                this.gamma = loaded.gamma;
+                this.epsilon = loaded.epsilon;
+                this.epsilonDecay = loaded.epsilonDecay;
+                this.epsilonMin = loaded.epsilonMin;
+                this.canonical = loaded.canonical;
+            }
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            Map<String, double[]> legacy = new HashMap<>();
+            char[] b = new char[9];
+            for (int s = 0; s < DenseQTable.STATES; s++) {
+                if (!q.seen[s]) continue;
+                for (int i = 0, c = s; i < 9; i++, c /= 3) b[i] = (c % 3 == 1) ? 'X' : (c % 3 == 2) ? 'O' : ' ';
+                legacy.put(stringify(b), q.copyRow(s));
+            }
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("me", me);
+            fields.put("opp", opp);
+            fields.put("alpha", alpha);
+            fields.put("gamma", gamma);
+            fields.put("epsilon", epsilon);
+            fields.put("epsilonDecay", epsilonDecay);
+            fields.put("epsilonMin", epsilonMin);
+            fields.put("canonical", canonical);
+            fields.put("q", legacy);
+            out.writeFields();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            me = fields.get("me", 'O');
+            opp = fields.get("opp", 'X');
+            alpha = fields.get("alpha", 0.5);
+            gamma = fields.get("gamma", 0.9);
+            epsilon = fields.get("epsilon", 0.2);
+            epsilonDecay = fields.get("epsilonDecay", 0.99995);
+            epsilonMin = fields.get("epsilonMin", 0.05);
+            canonical = fields.get("canonical", false);
+            learning = Learning.DEFAULT;
+            q = new DenseQTable();
+            stats = new TrainingStats(this);
+            worker = newWorker(new Random());
+            Map<String, double[]> legacy = (Map<String, double[]>) fields.get("q", null);
+            if (legacy != null) {
+                for (Map.Entry<String, double[]> e : legacy.entrySet()) q.putRow(encode(e.getKey()), e.getValue());
+            }
+        }
+    }
+
+    // ========= m,n,k agent =========
+    /**
+     * Tabular Q-learning on any m,n,k board, with the same update rules and
+     * hyperparameters as QLearningAgent. States are keyed by their Zobrist hash in a
+     * bounded HashedQTable, so memory stays fixed no matter how many positions
+     * training reaches. The table has a single writer: episodes, moves and overlay
+     * reads are all serialized on the agent. The solver opponent, symmetry folding
+     * and the evaluation tools remain 3x3-only.
+     */
+    static final class MnkAgent implements Learner {
+        final Geometry g;
+        private final HashedQTable q;
+        private final Random rnd = new Random();
+        private double alpha = 0.5;
+        private double gamma = 0.9;
+        private double epsilon = 0.2;
+        private double epsilonDecay = 0.99995; // per episode
+        private double epsilonMin = 0.05;
+
+        MnkAgent(Geometry g, int maxStates) {
+            this.g = g;
+            this.q = new HashedQTable(g.cells, maxStates);
+        }
+
+        static boolean supports(TrainMode mode) { return mode == TrainMode.SELF_PLAY || mode == TrainMode.LEGACY; }
+
+        synchronized int chooseAction(long x, long o, double epsilonOverride) {
+            return chooseAction(x, o, g.key(x, o), epsilonOverride >= 0 ? epsilonOverride : epsilon);
+        }
+
+        private int chooseAction(long x, long o, long key, double eps) {
+            long legal = g.legal(x, o);
+            if (legal != 0 && rnd.nextDouble() < eps) {
+                return nthLegal(legal, rnd.nextInt(Long.bitCount(legal)));
+            }
+            int best = Long.numberOfTrailingZeros(legal);
+            int f = q.find(key);
+            if (f < 0) return best; // unseen: every legal move is still 0.0
+            double[] v = q.values;
+            int base = f * g.cells;
+            double bestQ = -1e9;
+            for (long m = legal; m != 0; m &= m - 1) {
+                int a = Long.numberOfTrailingZeros(m);
+                if (v[base + a] > bestQ) { bestQ = v[base + a]; best = a; }
+            }
+            return best;
+        }
+
+        // ---- Agent ----
+        @Override public String name() { return "Q-table " + g; }
+        @Override public Geometry geometry() { return g; }
+        @Override public int chooseMove(long x, long o, Random rnd) { return chooseAction(x, o, 0.0); }
+        @Override public double[] peekValues(long x, long o) { return peekRow(x, o); }
+
+        /** One episode of the given mode followed by the epsilon decay; returns the winner or ' '. */
+        @Override public synchronized char trainOneEpisode(TrainMode mode) {
+            char winner;
+            switch (mode) {
+                case SELF_PLAY: winner = playSelfPlayEpisode(); break;
+                case LEGACY:    winner = playLegacyEpisode(); break;
+                default: throw new IllegalArgumentException(mode + " needs the 3x3 board");
+            }
+            epsilon = Math.max(epsilonMin, epsilon * epsilonDecay);
+            return winner;
+        }
+
+        // Same schedules as QLearningAgent's trainers, with each state carried as its
+        // key (updated by one XOR per move) plus the legal mask that initializes a fresh row.
+        private char playLegacyEpisode() {
+            long x = 0, o = 0, s = 0; // s = g.key(x, o)
+            boolean xToMove = true;
+            long sO = 0, lO = 0;
+            int aO = -1;
+
+            while (true) {
+                long legal = g.legal(x, o);
+                if (legal == 0) break;
+                int a;
+                if (xToMove) {
+                    a = nthLegal(legal, rnd.nextInt(Long.bitCount(legal)));
+                    x |= 1L << a;
+                } else {
+                    sO = s; lO = legal;
+                    a = chooseAction(x, o, s, epsilon);
+                    o |= 1L << a;
+                    aO = a;
+                }
+                s = g.move(s, a, xToMove);
+                boolean won = g.winsAt(xToMove ? x : o, a);
+                if (won || (x | o) == g.full) {
+                    double r = !won ? 0.0 : (xToMove ? -1.0 : +1.0);
+                    if (aO >= 0) updateQTerminal(sO, lO, aO, r);
+                    return !won ? ' ' : (xToMove ? 'X' : 'O');
+                }
+                if (aO >= 0 && !xToMove) {
+                    updateQ(sO, lO, aO, 0.0, s, g.legal(x, o));
+                    aO = -1;
+                }
+                xToMove = !xToMove;
+            }
+            return ' ';
+        }
+
+        private char playSelfPlayEpisode() {
+            long x = 0, o = 0, sNext = 0; // sNext = g.key(x, o)
+            boolean xToMove = true;
+            long sPrevX = 0, sPrevO = 0, lPrevX = 0, lPrevO = 0;
+            int aPrevX = -1, aPrevO = -1;
+
+            while (true) {
+                long legal = g.legal(x, o);
+                if (legal == 0) break;
+
+                long s = sNext;
+                int a = chooseAction(x, o, s, epsilon);
+                boolean won;
+                if (xToMove) { x |= 1L << a; won = g.winsAt(x, a); }
+                else         { o |= 1L << a; won = g.winsAt(o, a); }
+                sNext = g.move(s, a, xToMove);
+                boolean terminal = won || (x | o) == g.full;
+
+                if (xToMove) {
+                    if (aPrevX >= 0 && !terminal) updateQ(sPrevX, lPrevX, aPrevX, 0.0, sNext, g.legal(x, o));
+                    sPrevX = s; lPrevX = legal; aPrevX = a;
+                } else {
+                    if (aPrevO >= 0 && !terminal) updateQ(sPrevO, lPrevO, aPrevO, 0.0, sNext, g.legal(x, o));
+                    sPrevO = s; lPrevO = legal; aPrevO = a;
+                }
+
+                if (terminal) {
+                    double rX = !won ? 0.0 : (xToMove ? +1.0 : -1.0);
+                    if (aPrevX >= 0) updateQTerminal(sPrevX, lPrevX, aPrevX, rX);
+                    if (aPrevO >= 0) updateQTerminal(sPrevO, lPrevO, aPrevO, -rX);
+                    return !won ? ' ' : (xToMove ? 'X' : 'O');
+                }
+                xToMove = !xToMove;
+            }
+            return ' ';
+        }
+
+        // ---- Q-learning updates ----
+        private void updateQ(long s, long legalS, int a, double r, long sPrime, long legalPrime) {
+            double maxNext = maxOverLegal(sPrime, legalPrime); // read before acquire(s) can evict sPrime's row
+            int i = q.acquire(s, legalS) * g.cells + a;
+            q.values[i] += alpha * (r + gamma * maxNext - q.values[i]);
+        }
+        private void updateQTerminal(long s, long legalS, int a, double r) {
+            int i = q.acquire(s, legalS) * g.cells + a;
+            q.values[i] += alpha * (r - q.values[i]);
+        }
+        private double maxOverLegal(long key, long legal) {
+            int f = q.find(key);
+            if (f < 0 || legal == 0) return 0.0; // unseen rows are all 0.0; terminal has no moves
+            double best = -1e9;
+            for (long m = legal; m != 0; m &= m - 1) {
+                best = Math.max(best, q.values[f * g.cells + Long.numberOfTrailingZeros(m)]);
+            }
+            return best;
+        }
+
+        /** Copy of the Q-row for a position, or null if it is not in the table. */
+        synchronized double[] peekRow(long x, long o) {
+            int f = q.find(g.key(x, o));
+            if (f < 0) return null;
+            double[] row = new double[g.cells];
+            System.arraycopy(q.values, f * g.cells, row, 0, row.length);
+            return row;
+        }
+
+        synchronized int tableSize() { return q.size(); }
+        synchronized long evictions() { return q.evictions(); }
+        long tableBytes() { return q.footprintBytes(); }
+
+        double getEpsilon() { return epsilon; }
+        double getAlpha() { return alpha; }
+        double getGamma() { return gamma; }
+        double getEpsilonDecay() { return epsilonDecay; }
+        double getEpsilonMin() { return epsilonMin; }
+
+        synchronized void setHyperparameters(double alpha, double gamma, double epsilon, double epsilonDecay, double epsilonMin) {
+            this.alpha = alpha;
+            this.gamma = gamma;
+            this.epsilon = epsilon;
+            this.epsilonDecay = epsilonDecay;
+            this.epsilonMin = epsilonMin;
+        }
+
+        String describeHyperparameters() {
+            return String.format("alpha=%.3f gamma=%.3f epsilon=%.4f decay=%.6f floor=%.3f board=%s max-states=%d",
+                    alpha, gamma, epsilon, epsilonDecay, epsilonMin, g, q.maxStates);
+        }
+
+        // Persistence (QTableFile version 2)
+        void saveTo(String path) throws IOException {
+            Checkpointer.write(path, encode(), 0);
+        }
+
+        /** The table in QTableFile version 2 form; encoded under the agent's lock, so between episodes. */
+        synchronized ByteBuffer encode() {
+            final int n = g.cells, stride = QTableFile.hashedStride(n);
+            ByteBuffer buf = ByteBuffer.allocate(QTableFile.HEADER + q.size() * stride).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(QTableFile.MAGIC).putInt(QTableFile.VERSION_HASHED).putInt(0).putInt(n)
+               .putInt(q.size()).putInt(g.packed())
+               .putDouble(alpha).putDouble(gamma).putDouble(epsilon).putDouble(epsilonDecay).putDouble(epsilonMin);
+            for (int f = 0; f < q.size(); f++) {
+                buf.putLong(q.frameKey(f));
+                for (int a = 0; a < n; a++) buf.putDouble(q.values[f * n + a]);
+            }
+            buf.flip();
+            return buf;
+        }
+
+        /** Loads a version 2 table saved for this board (memory-mapped); a missing file is ignored. */
+        synchronized void loadFrom(String path) throws IOException {
+            File f = new File(path);
+            if (!f.exists()) return;
+            final int n = g.cells, stride = QTableFile.hashedStride(n);
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                if (ch.size() < QTableFile.HEADER) throw new IOException(path + ": not a Q-table");
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                if (buf.getInt(0) != QTableFile.MAGIC || buf.getInt(4) != QTableFile.VERSION_HASHED
+                        || buf.getInt(12) != n || buf.getInt(20) != g.packed()) {
+                    throw new IOException(path + ": not a Q-table for the " + g + " board");
+                }
+                int count = buf.getInt(16);
+                if (count < 0 || ch.size() != QTableFile.HEADER + (long) count * stride) {
+                    throw new IOException(path + ": truncated or corrupt Q-table");
+                }
+                q.clear();
+                // a table larger than this agent's budget keeps its last maxStates rows
+                for (int r = 0, off = QTableFile.HEADER; r < count; r++, off += stride) {
+                    int base = q.acquire(buf.getLong(off), 0) * n;
+                    for (int a = 0; a < n; a++) q.values[base + a] = buf.getDouble(off + 8 + 8 * a);
+                }
+                this.alpha = buf.getDouble(24);
+                this.gamma = buf.getDouble(32);
+                this.epsilon = buf.getDouble(40);
+                this.epsilonDecay = buf.getDouble(48);
+                this.epsilonMin = buf.getDouble(56);
+            }
+        }
+    }
+
+    // ========= Q-network agent =========
+    /**
+     * Q-learning with a function approximator instead of a table, for any m,n,k
+     * board: memory is the weights, whatever number of positions training reaches.
+     * The input is the board from the side to move's view (one unit per own stone,
+     * one per opponent stone), and there is one output per cell. With {@code hidden}
+     * = 0 the net is linear; otherwise it has one ReLU layer of that width.
+     * <p>
+     * Weights are flat float arrays, laid out so that every inner loop is a unit-stride
+     * axpy over one array (HotSpot's superword pass turns these into SIMD code):
+     * w1 is [input][hidden] (the input is sparse, so the first layer adds one row
+     * per stone), and w2 is [hidden][output]. Moves are learned in mini-batches of
+     * {@code batch} transitions. Targets are computed with the weights from the start
+     * of the batch, then the averaged gradient step is applied. The target is the
+     * two-ply one of the legacy trainer and ValueIteration: r if the move ended the
+     * game, otherwise gamma * max Q at the mover's next turn. A single writer, like MnkAgent.
+     */
+    static final class QNetAgent implements Learner {
+        final Geometry g;
+        final int hidden;
+        private final int in, out, width; // width = units of the first layer (hidden, or out when linear)
+        private final float[] w1, b1, w2, b2; // w2/b2 are empty when linear
+        private final float[] gw1, gb1, gw2, gb2;
+        private final float[] h, q, dh;       // scratch of one forward/backward pass
+        private final Random rnd = new Random();
+        private double alpha = 0.05;
+        private double gamma = 0.9;
+        private double epsilon = 0.2;
+        private double epsilonDecay = 0.99995; // per episode
+        private double epsilonMin = 0.05;
+        private int batch;
+        // pending transitions: position before (x, o), move, reward, position at the mover's next turn
+        private final long[] bx, bo, nx, no;
+        private final int[] ba;
+        private final double[] br;
+        private final boolean[] bTerminal;
+        private final float[] targets;        // of the pending transitions, during learnBatch
+        // the last move of each side in the current episode (0 = X, 1 = O), learned at that side's next turn
+        private final long[] lastX = new long[2], lastO = new long[2];
+        private final int[] lastA = new int[2];
+        private int pending;
+        private long updates;
+
+        QNetAgent(Geometry g, int hidden, int batch) {
+            if (hidden < 0) throw new IllegalArgumentException("hidden must not be negative: " + hidden);
+            if (batch < 1) throw new IllegalArgumentException("batch must be at least 1: " + batch);
+            this.g = g;
+            this.hidden = hidden;
+            this.in = 2 * g.cells;
+            this.out = g.cells;
+            this.width = hidden > 0 ? hidden : out;
+            w1 = new float[in * width];
+            b1 = new float[width];
+            w2 = new float[hidden * out];
+            b2 = new float[hidden > 0 ? out : 0];
+            gw1 = new float[w1.length];
+            gb1 = new float[b1.length];
+            gw2 = new float[w2.length];
+            gb2 = new float[b2.length];
+            h = new float[width];
+            q = new float[out];
+            dh = new float[width];
+            this.batch = batch;
+            bx = new long[batch]; bo = new long[batch]; nx = new long[batch]; no = new long[batch];
+            ba = new int[batch];
+            br = new double[batch];
+            bTerminal = new boolean[batch];
+            targets = new float[batch];
+            // small uniform weights: every Q starts near 0 but hidden units differ
+            Random init = new Random(g.packed());
+            float r1 = hidden > 0 ? (float) (1 / Math.sqrt(g.cells)) : 0f, r2 = hidden > 0 ? (float) (0.1 / Math.sqrt(hidden)) : 0f;
+            for (int i = 0; i < w1.length; i++) w1[i] = (init.nextFloat() * 2 - 1) * r1;
+            for (int i = 0; i < w2.length; i++) w2[i] = (init.nextFloat() * 2 - 1) * r2;
+        }
+
+        static boolean supports(TrainMode mode) { return MnkAgent.supports(mode); }
+
+        // ---- Forward / backward ----
+        /** Q-values of every cell (occupied ones included) into {@code q}; leaves the layer activations in {@code h}. */
+        private void forward(long x, long o) {
+            final boolean xToMove = Long.bitCount(x) == Long.bitCount(o);
+            final long mine = xToMove ? x : o, theirs = xToMove ? o : x;
+            final float[] h = this.h, w1 = this.w1;
+            final int width = this.width;
+            System.arraycopy(b1, 0, h, 0, width);
+            for (long m = mine; m != 0; m &= m - 1) {
+                int row = Long.numberOfTrailingZeros(m) * width;
+                for (int j = 0; j < width; j++) h[j] += w1[row + j];
+            }
+            for (long m = theirs; m != 0; m &= m - 1) {
+                int row = (g.cells + Long.numberOfTrailingZeros(m)) * width;
+                for (int j = 0; j < width; j++) h[j] += w1[row + j];
+            }
+            if (hidden == 0) { System.arraycopy(h, 0, q, 0, out); return; }
+            final float[] q = this.q, w2 = this.w2;
+            final int out = this.out;
+            System.arraycopy(b2, 0, q, 0, out);
+            for (int j = 0; j < width; j++) {
+                if (h[j] <= 0) { h[j] = 0; continue; } // ReLU
+                final float hj = h[j];
+                final int row = j * out;
+                for (int a = 0; a < out; a++) q[a] += hj * w2[row + a];
+            }
+        }
+
+        /** Accumulates the gradient of 0.5 * (q[a] - target)^2 at the position of the last forward pass. */
+        private void backward(long x, long o, int a, float error) {
+            final boolean xToMove = Long.bitCount(x) == Long.bitCount(o);
+            final long mine = xToMove ? x : o, theirs = xToMove ? o : x;
+            final float[] d;
+            final int width = this.width;
+            if (hidden == 0) {
+                java.util.Arrays.fill(dh, 0f);
+                dh[a] = error;
+                d = dh;
+            } else {
+                gb2[a] += error;
+                for (int j = 0; j < width; j++) {
+                    float hj = h[j];
+                    gw2[j * out + a] += error * hj;
+                    dh[j] = hj > 0 ? error * w2[j * out + a] : 0f;
+                }
+                d = dh;
+            }
+            final float[] gw1 = this.gw1;
+            for (int j = 0; j < width; j++) gb1[j] += d[j];
+            for (long m = mine; m != 0; m &= m - 1) {
+                int row = Long.numberOfTrailingZeros(m) * width;
+                for (int j = 0; j < width; j++) gw1[row + j] += d[j];
+            }
+            for (long m = theirs; m != 0; m &= m - 1) {
+                int row = (g.cells + Long.numberOfTrailingZeros(m)) * width;
+                for (int j = 0; j < width; j++) gw1[row + j] += d[j];
+            }
+        }
+
+        private static void step(float[] w, float[] grad, float rate) {
+            for (int i = 0; i < w.length; i++) { w[i] -= rate * grad[i]; grad[i] = 0f; }
+        }
+
+        /** Highest-valued legal move after a forward pass. */
+        private int argmaxLegal(long legal) {
+            int best = Long.numberOfTrailingZeros(legal);
+            for (long m = legal & (legal - 1); m != 0; m &= m - 1) {
+                int a = Long.numberOfTrailingZeros(m);
+                if (q[a] > q[best]) best = a;
+            }
+            return best;
+        }
+
+        private float maxLegal(long x, long o) {
+            forward(x, o);
+            return q[argmaxLegal(g.legal(x, o))];
+        }
+
+        // ---- Learning ----
+        private void remember(long x, long o, int a, double r, long x2, long o2, boolean terminal) {
+            bx[pending] = x; bo[pending] = o; ba[pending] = a; br[pending] = r;
+            nx[pending] = x2; no[pending] = o2; bTerminal[pending] = terminal;
+            if (++pending == batch) learnBatch();
+        }
+
+        /** One gradient step on the pending transitions (targets first, so they all see the same weights). */
+        private void learnBatch() {
+            if (pending == 0) return;
+            for (int k = 0; k < pending; k++) {
+                targets[k] = (float) (bTerminal[k] ? br[k] : br[k] + gamma * maxLegal(nx[k], no[k]));
+            }
+            for (int k = 0; k < pending; k++) {
+                forward(bx[k], bo[k]);
+                backward(bx[k], bo[k], ba[k], q[ba[k]] - targets[k]);
+            }
+            final float rate = (float) (alpha / pending);
+            step(w1, gw1, rate);
+            step(b1, gb1, rate);
+            step(w2, gw2, rate);
+            step(b2, gb2, rate);
+            updates += pending;
+            pending = 0;
+        }
+
+        private int choose(long x, long o, double eps) {
+            long legal = g.legal(x, o);
+            if (rnd.nextDouble() < eps) return nthLegal(legal, rnd.nextInt(Long.bitCount(legal)));
+            forward(x, o);
+            return argmaxLegal(legal);
+        }
+
+        /** One episode of the given mode followed by the epsilon decay; returns the winner or ' '. */
+        @Override public synchronized char trainOneEpisode(TrainMode mode) {
+            if (!supports(mode)) throw new IllegalArgumentException(mode + " is not available for the Q-network");
+            final boolean selfPlay = mode == TrainMode.SELF_PLAY;
+            long x = 0, o = 0;
+            boolean xToMove = true;
+            lastA[0] = lastA[1] = -1;
+            char winner = ' ';
+            while (true) {
+                long legal = g.legal(x, o);
+                if (legal == 0) break;
+                int side = xToMove ? 0 : 1;
+                boolean learner = selfPlay || !xToMove; // legacy: random X, learning O
+                if (learner && lastA[side] >= 0) remember(lastX[side], lastO[side], lastA[side], 0.0, x, o, false);
+                int a = learner ? choose(x, o, epsilon) : nthLegal(legal, rnd.nextInt(Long.bitCount(legal)));
+                long x0 = x, o0 = o;
+                boolean won;
+                if (xToMove) { x |= 1L << a; won = g.winsAt(x, a); }
+                else         { o |= 1L << a; won = g.winsAt(o, a); }
+                if (won || (x | o) == g.full) {
+                    double r = won ? 1.0 : 0.0;
+                    if (learner) remember(x0, o0, a, r, 0, 0, true);
+                    int other = 1 - side;
+                    if ((selfPlay || xToMove) && lastA[other] >= 0) remember(lastX[other], lastO[other], lastA[other], -r, 0, 0, true);
+                    winner = !won ? ' ' : (xToMove ? 'X' : 'O');
+                    break;
+                }
+                if (learner) { lastX[side] = x0; lastO[side] = o0; lastA[side] = a; }
+                xToMove = !xToMove;
+            }
+            epsilon = Math.max(epsilonMin, epsilon * epsilonDecay);
+            return winner;
+        }
+
+        /** Applies any transitions still waiting for a full batch. */
+        synchronized void flush() { learnBatch(); }
+
+        // ---- Agent ----
+        @Override public String name() { return (hidden == 0 ? "Linear Q " : "MLP(" + hidden + ") Q ") + g; }
+        @Override public Geometry geometry() { return g; }
+        @Override public synchronized int chooseMove(long x, long o, Random rnd) { return choose(x, o, 0.0); }
+        @Override public synchronized double[] peekValues(long x, long o) {
+            forward(x, o);
+            long legal = g.legal(x, o);
+            double[] row = new double[out];
+            for (int a = 0; a < out; a++) row[a] = ((legal >>> a) & 1) != 0 ? q[a] : Double.NEGATIVE_INFINITY;
+            return row;
+        }
+
+        /** Q-values of every cell of a position into {@code dst}; for benchmarks. */
+        synchronized void evaluate(long x, long o, float[] dst) {
+            forward(x, o);
+            System.arraycopy(q, 0, dst, 0, out);
+        }
+
+        int parameters() { return w1.length + b1.length + w2.length + b2.length; }
+        /** Weights, gradients, the transition batch and the episode's last moves: fixed at construction. */
+        long footprintBytes() {
+            long perTransition = 8L * 4 + 4 + 8 + 1 + 4; // bx, bo, nx, no; ba; br; bTerminal; targets
+            return 8L * parameters() + 4L * (h.length + q.length + dh.length) + perTransition * batch + 2 * (8L * 2 + 4);
+        }
+        synchronized long updates() { return updates; }
+
+        double getEpsilon() { return epsilon; }
+        double getAlpha() { return alpha; }
+        double getGamma() { return gamma; }
+        double getEpsilonDecay() { return epsilonDecay; }
+        double getEpsilonMin() { return epsilonMin; }
+
+        synchronized void setHyperparameters(double alpha, double gamma, double epsilon, double epsilonDecay, double epsilonMin) {
+            this.alpha = alpha;
+            this.gamma = gamma;
+            this.epsilon = epsilon;
+            this.epsilonDecay = epsilonDecay;
+            this.epsilonMin = epsilonMin;
+        }
+
+        String describeHyperparameters() {
+            return String.format("alpha=%.4f gamma=%.3f epsilon=%.4f decay=%.6f floor=%.3f board=%s hidden=%d batch=%d params=%d",
+                    alpha, gamma, epsilon, epsilonDecay, epsilonMin, g, hidden, batch, parameters());
+        }
+
+        // Persistence (QTableFile version 3)
+        void saveTo(String path) throws IOException {
+            Checkpointer.write(path, encode(), 0);
+        }
+
+        /** The weights in QTableFile version 3 form; pending transitions stay pending (see {@link #flush()}). */
+        synchronized ByteBuffer encode() {
+            ByteBuffer buf = ByteBuffer.allocate(QTableFile.HEADER + 4 * parameters()).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(QTableFile.MAGIC).putInt(QTableFile.VERSION_NET).putInt(0).putInt(out)
+               .putInt(hidden).putInt(g.packed())
+               .putDouble(alpha).putDouble(gamma).putDouble(epsilon).putDouble(epsilonDecay).putDouble(epsilonMin);
+            for (float[] a : new float[][]{w1, b1, w2, b2}) {
+                buf.asFloatBuffer().put(a);
+                buf.position(buf.position() + 4 * a.length);
+            }
+            buf.flip();
+            return buf;
+        }
+
+        /** Hidden width stored in a version 3 file, or -1 if the file is not one. */
+        static int hiddenOf(String path) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+                byte[] head = new byte[24];
+                in.readFully(head);
+                ByteBuffer buf = ByteBuffer.wrap(head).order(ByteOrder.LITTLE_ENDIAN);
+                return buf.getInt(0) == QTableFile.MAGIC && buf.getInt(4) == QTableFile.VERSION_NET ? buf.getInt(16) : -1;
+            } catch (EOFException ex) {
+                return -1;
+            }
+        }
+
+        synchronized void loadFrom(String path) throws IOException {
+            File f = new File(path);
+            if (!f.exists()) return;
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                if (ch.size() < QTableFile.HEADER) throw new IOException(path + ": not a Q-network");
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                if (buf.getInt(0) != QTableFile.MAGIC || buf.getInt(4) != QTableFile.VERSION_NET
+                        || buf.getInt(12) != out || buf.getInt(16) != hidden || buf.getInt(20) != g.packed()) {
+                    throw new IOException(path + ": not a " + name() + " network");
+                }
+                if (ch.size() != QTableFile.HEADER + 4L * parameters()) throw new IOException(path + ": truncated or corrupt Q-network");
+                java.nio.FloatBuffer fb = buf.position(QTableFile.HEADER).slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                fb.get(w1).get(b1).get(w2).get(b2);
+                this.alpha = buf.getDouble(24);
+                this.gamma = buf.getDouble(32);
+                this.epsilon = buf.getDouble(40);
+                this.epsilonDecay = buf.getDouble(48);
+                this.epsilonMin = buf.getDouble(56);
+                pending = 0;
+            }
+        }
+    }
+
+    // ========= Monte Carlo tree search =========
+    /**
+     * UCT search with random rollouts on any m,n,k board. Tree nodes live in
+     * NodePools of parallel arrays that the engine keeps and lends to one search at
+     * a time; a pool is reset, not reallocated, for each move, so searching allocates
+     * nothing once the pools have grown to their working size.
+     * With several threads the search is root-parallel: every thread grows its own
+     * tree from the position with its share of the rollouts, and the root visit
+     * counts are summed before the most-visited move is played. The budget is a
+     * rollout count, a time limit per move, or both (whichever runs out first).
+     * Safe to call from many threads at once.
+     */
+    static final class Mcts implements Agent {
+        private static final double EXPLORATION = Math.sqrt(2);
+        private static final int MAX_NODES = 1 << 20; // per pool; past this, leaves are rolled out without expanding
+
+        private final Geometry g;
+        private final int rollouts;  // 0 = no rollout limit
+        private final long moveNanos; // 0 = no time limit
+        private final int threads;
+        private final java.util.concurrent.ConcurrentLinkedQueue<NodePool> pools = new java.util.concurrent.ConcurrentLinkedQueue<>(); // idle ones
+        private final ExecutorService helpers; // the other threads of a root-parallel search; null for one thread
+        private volatile Search last;
+
+        Mcts(Geometry g, int rollouts, long moveMs, int threads) {
+            if (rollouts < 0 || moveMs < 0 || (rollouts == 0 && moveMs == 0)) {
+                throw new IllegalArgumentException("MCTS needs a rollout budget or a time limit per move");
+            }
+            this.g = g;
+            this.rollouts = rollouts;
+            this.moveNanos = moveMs * 1_000_000L;
+            this.threads = Math.max(1, threads);
+            this.helpers = this.threads == 1 ? null : Executors.newFixedThreadPool(this.threads - 1, r -> {
+                Thread t = new Thread(r, "ttt-mcts");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /** "mcts", "mcts:N" (N rollouts per move) or "mcts:Nms" (N milliseconds per move). */
+        static Mcts parse(String spec, Geometry g, int threads) {
+            String budget = spec.startsWith("mcts:") ? spec.substring(5) : "1000";
+            try {
+                return budget.endsWith("ms")
+                        ? new Mcts(g, 0, Long.parseLong(budget.substring(0, budget.length() - 2)), threads)
+                        : new Mcts(g, Integer.parseInt(budget), 0, threads);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("MCTS budget must look like mcts:1000 or mcts:200ms: " + spec);
+            }
+        }
+
+        long moveMs() { return moveNanos / 1_000_000L; }
+
+        /** Stops the helper threads and lets go of the trees. */
+        void close() {
+            if (helpers != null) helpers.shutdownNow();
+            pools.clear();
+        }
+
+        /** Runs one tree search on an idle pool, or a new one if every pool is busy. */
+        private Search search(long x, long o, int budget, long deadline, Random rnd) {
+            NodePool pool = pools.poll();
+            if (pool == null) pool = new NodePool(g);
+            try { return pool.search(x, o, budget, deadline, rnd); }
+            finally { pools.offer(pool); }
+        }
+
+        @Override public String name() {
+            return "MCTS(" + (rollouts > 0 ? rollouts + " rollouts" : "") + (rollouts > 0 && moveNanos > 0 ? ", " : "")
+                    + (moveNanos > 0 ? moveMs() + " ms" : "") + (threads > 1 ? ", " + threads + " threads" : "") + ")";
+        }
+        @Override public Geometry geometry() { return g; }
+
+        @Override public int chooseMove(long x, long o, Random rnd) {
+            long legal = g.legal(x, o);
+            if (Long.bitCount(legal) == 1) return Long.numberOfTrailingZeros(legal);
+            final long deadline = moveNanos == 0 ? 0 : System.nanoTime() + moveNanos;
+            final long start = System.nanoTime();
+            Search total;
+            if (helpers == null) {
+                total = search(x, o, rollouts, deadline, rnd);
+            } else {
+                java.util.List<java.util.concurrent.Future<Search>> parts = new java.util.ArrayList<>();
+                for (int t = 1; t < threads; t++) {
+                    final int share = rollouts == 0 ? 0 : Math.max(1, rollouts / threads);
+                    parts.add(helpers.submit(() -> search(x, o, share, deadline, ThreadLocalRandom.current())));
+                }
+                total = search(x, o, rollouts == 0 ? 0 : Math.max(1, rollouts - (threads - 1) * (rollouts / threads)), deadline, rnd);
+                for (java.util.concurrent.Future<Search> f : parts) {
+                    try { total.add(f.get()); }
+                    catch (InterruptedException ex) { Thread.currentThread().interrupt(); break; }
+                    catch (ExecutionException ex) { throw new IllegalStateException(ex.getCause()); }
+                }
+            }
+            total.nanos = System.nanoTime() - start;
+            last = total;
+            return total.best();
+        }
+
+        /** Root win rates of the latest search, as 2 * rate - 1, if it was of this position. */
+        @Override public double[] peekValues(long x, long o) {
+            Search s = last;
+            if (s == null || s.x != x || s.o != o) return null;
+            double[] row = new double[g.cells];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = s.visits[i] == 0 ? Double.NEGATIVE_INFINITY : 2 * s.wins[i] / s.visits[i] - 1;
+            }
+            return row;
+        }
+
+        /** Rollouts and wall time of the latest search. */
+        long lastRollouts() { Search s = last; return s == null ? 0 : s.rollouts; }
+        long lastNanos() { Search s = last; return s == null ? 0 : s.nanos; }
+
+        /** Root statistics of one search (or of several, summed). */
+        static final class Search {
+            final long x, o;
+            final long[] visits;
+            final double[] wins; // for the side to move at the root: 1 per win, 0.5 per draw
+            long rollouts, nanos;
+            int forcedWin = -1;  // a move that wins on the spot, if the root has one
+
+            Search(long x, long o, int cells) { this.x = x; this.o = o; visits = new long[cells]; wins = new double[cells]; }
+
+            void add(Search other) {
+                for (int i = 0; i < visits.length; i++) { visits[i] += other.visits[i]; wins[i] += other.wins[i]; }
+                rollouts += other.rollouts;
+            }
+
+            int best() {
+                if (forcedWin >= 0) return forcedWin;
+                int best = -1;
+                for (int i = 0; i < visits.length; i++) {
+                    if (visits[i] > 0 && (best < 0 || visits[i] > visits[best]
+                            || (visits[i] == visits[best] && wins[i] > wins[best]))) best = i;
+                }
+                return best;
+            }
+        }
+
+        /** One search tree, as parallel arrays indexed by node. */
+        private static final class NodePool {
+            private static final byte OPEN = 0, WON = 1, DRAWN = 2; // outcome of the move into the node
+
+            private final Geometry g;
+            int[] move = new int[1024], firstChild = new int[1024], children = new int[1024], visits = new int[1024];
+            double[] wins = new double[1024]; // for the player who moved into the node
+            byte[] outcome = new byte[1024];
+            int size;
+            private final int[] path;
+
+            NodePool(Geometry g) {
+                this.g = g;
+                this.path = new int[g.cells + 2];
+            }
+
+            private int alloc(int n) {
+                if (size + n > move.length) {
+                    int cap = Math.max(size + n, move.length * 2);
+                    move = java.util.Arrays.copyOf(move, cap);
+                    firstChild = java.util.Arrays.copyOf(firstChild, cap);
+                    children = java.util.Arrays.copyOf(children, cap);
+                    visits = java.util.Arrays.copyOf(visits, cap);
+                    wins = java.util.Arrays.copyOf(wins, cap);
+                    outcome = java.util.Arrays.copyOf(outcome, cap);
+                }
+                int first = size;
+                for (int i = first; i < first + n; i++) { children[i] = 0; visits[i] = 0; wins[i] = 0; outcome[i] = OPEN; }
+                size += n;
+                return first;
+            }
+
+            /** Adds a child per legal move, each marked with whether that move ends the game. */
+            private void expand(int node, long x, long o, boolean xToMove) {
+                long legal = g.legal(x, o);
+                int n = Long.bitCount(legal), first = alloc(n);
+                long mine = xToMove ? x : o;
+                boolean lastCell = Long.bitCount(x | o) + 1 == g.cells;
+                for (int c = first; legal != 0; legal &= legal - 1, c++) {
+                    int cell = Long.numberOfTrailingZeros(legal);
+                    move[c] = cell;
+                    outcome[c] = g.winsAt(mine | 1L << cell, cell) ? WON : lastCell ? DRAWN : OPEN;
+                }
+                firstChild[node] = first;
+                children[node] = n;
+            }
+
+            private int select(int node) {
+                final int first = firstChild[node], end = first + children[node];
+                final double logN = Math.log(visits[node]);
+                int best = first;
+                double bestScore = Double.NEGATIVE_INFINITY;
+                for (int c = first; c < end; c++) {
+                    if (visits[c] == 0) return c;
+                    double score = wins[c] / visits[c] + EXPLORATION * Math.sqrt(logN / visits[c]);
+                    if (score > bestScore) { bestScore = score; best = c; }
+                }
+                return best;
+            }
+
+            Search search(long x, long o, int budget, long deadline, Random rnd) {
+                size = 0;
+                final int root = alloc(1);
+                final boolean rootX = Long.bitCount(x) == Long.bitCount(o);
+                Search result = new Search(x, o, g.cells);
+                expand(root, x, o, rootX);
+                for (int c = firstChild[root]; c < firstChild[root] + children[root]; c++) {
+                    if (outcome[c] == WON) { result.forcedWin = move[c]; return result; }
+                }
+                for (long n = 0; budget == 0 || n < budget; n++) {
+                    if (deadline != 0 && (n & 63) == 0 && System.nanoTime() >= deadline) break;
+                    long bx = x, bo = o;
+                    boolean xToMove = rootX;
+                    int node = root, len = 0;
+                    path[len++] = root;
+                    // selection
+                    while (outcome[node] == OPEN && children[node] != 0) {
+                        node = select(node);
+                        if (xToMove) bx |= 1L << move[node]; else bo |= 1L << move[node];
+                        xToMove = !xToMove;
+                        path[len++] = node;
+                    }
+                    // expansion: a leaf grows its children on its second visit
+                    if (outcome[node] == OPEN && visits[node] > 0 && size + g.cells <= MAX_NODES) {
+                        expand(node, bx, bo, xToMove);
+                        node = firstChild[node] + rnd.nextInt(children[node]);
+                        if (xToMove) bx |= 1L << move[node]; else bo |= 1L << move[node];
+                        xToMove = !xToMove;
+                        path[len++] = node;
+                    }
+                    // simulation: winner 1 = the player who moved into node, 0 = draw, -1 = the other
+                    int winner = outcome[node] == WON ? 1 : outcome[node] == DRAWN ? 0 : rollout(bx, bo, xToMove, rnd);
+                    // backpropagation, flipping perspective each ply up the path
+                    for (int d = len - 1; d >= 0; d--, winner = -winner) {
+                        int v = path[d];
+                        visits[v]++;
+                        wins[v] += winner > 0 ? 1.0 : winner == 0 ? 0.5 : 0.0;
+                    }
+                    result.rollouts++;
+                }
+                for (int c = firstChild[root]; c < firstChild[root] + children[root]; c++) {
+                    result.visits[move[c]] = visits[c];
+                    result.wins[move[c]] = wins[c];
+                }
+                return result;
+            }
+
+            /** Random playout to the end; 1 if the player who just moved wins, 0 on a draw, -1 otherwise. */
+            private int rollout(long x, long o, boolean xToMove, Random rnd) {
+                final boolean justMovedX = !xToMove;
+                long legal = g.legal(x, o);
+                while (legal != 0) {
+                    int cell = nthLegal(legal, rnd.nextInt(Long.bitCount(legal)));
+                    legal &= ~(1L << cell);
+                    if (xToMove) {
+                        x |= 1L << cell;
+                        if (g.winsAt(x, cell)) return justMovedX ? 1 : -1;
+                    } else {
+                        o |= 1L << cell;
+                        if (g.winsAt(o, cell)) return justMovedX ? -1 : 1;
+                    }
+                    xToMove = !xToMove;
+                }
+                return 0;
+            }
+        }
+    }
+
+    // ========= Parallel training =========
+    /**
+     * Runs training episodes on N worker threads against one shared Q-table,
+     * Hogwild-style: rows are updated without locks, each worker has its own
+     * Random, and completed episodes are counted in a LongAdder so progress can
+     * be aggregated across workers. The threads and their Workers (replay buffers
+     * included) carry over from one run to the next, so callers that train in
+     * windows (see Convergence) keep them; idle threads exit after a second.
+     */
+    static final class ParallelTrainer {
+        private static final int BATCH = 256; // episodes between a worker's progress/epsilon syncs
+
+        private final QLearningAgent agent;
+        private final TrainMode mode;
+        private final int threads;
+        private final LongAdder done = new LongAdder();
+        private final LongAdder xWins = new LongAdder();
+        private final LongAdder oWins = new LongAdder();
+        private final LongAdder draws = new LongAdder();
+        private final Worker[] workers;
+        private final java.util.concurrent.ThreadPoolExecutor pool;
+        private boolean decay = true;
+
+        ParallelTrainer(QLearningAgent agent, TrainMode mode, int threads) {
+            this.agent = agent;
+            this.mode = mode;
+            this.threads = Math.max(1, threads);
+            long seed = System.nanoTime();
+            workers = new Worker[this.threads];
+            for (int w = 0; w < workers.length; w++) workers[w] = agent.newWorker(new Random(seed + w * 0x9E3779B97F4A7C15L));
+            pool = new java.util.concurrent.ThreadPoolExecutor(this.threads, this.threads, 1, TimeUnit.SECONDS,
+                    new java.util.concurrent.LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "ttt-train");
+                t.setDaemon(true);
+                return t;
+            });
+            pool.allowCoreThreadTimeOut(true);
+        }
+
+        /** Leaves epsilon where it is while episodes run, for callers that set it themselves (see Convergence). */
+        ParallelTrainer holdEpsilon() {
+            decay = false;
+            return this;
+        }
+
+        /**
+         * Trains {@code episodes} episodes and blocks until they finish. The calling
+         * thread polls progress and hands the running total to {@code progress}. If a
+         * worker fails, the others are stopped and its exception is rethrown here.
+         */
+        void run(long episodes, LongConsumer progress) throws InterruptedException {
+            final double epsStart = agent.getEpsilon();
+            final java.util.concurrent.CountDownLatch finished = new java.util.concurrent.CountDownLatch(threads);
+            java.util.List<java.util.concurrent.Future<?>> tasks = new java.util.ArrayList<>();
+            for (int w = 0; w < threads; w++) {
+                final long share = episodes / threads + (w < episodes % threads ? 1 : 0);
+                final Worker worker = workers[w];
+                tasks.add(pool.submit(() -> {
+                    int pending = 0, px = 0, po = 0;
+                    try {
+                        for (long i = 0; i < share; i++) {
+                            char winner = agent.playEpisode(mode, worker);
+                            if (winner == 'X') px++; else if (winner == 'O') po++;
+                            if (++pending == BATCH || i == share - 1) {
+                                xWins.add(px);
+                                oWins.add(po);
+                                draws.add(pending - px - po);
+                                done.add(pending);
+                                pending = 0; px = 0; po = 0;
+                                if (decay) agent.decayEpsilon(epsStart, done.sum());
+                            }
+                        }
+                        worker.stats.flush();
+                    } finally {
+                        worker.end();
+                        finished.countDown();
+                    }
+                }));
+            }
+            try {
+                while (!finished.await(20, TimeUnit.MILLISECONDS)) {
+                    progress.accept(done.sum());
+                    for (java.util.concurrent.Future<?> f : tasks) if (f.isDone()) rethrowFailure(f);
+                }
+                for (java.util.concurrent.Future<?> f : tasks) rethrowFailure(f);
+            } catch (InterruptedException | RuntimeException | Error ex) {
+                for (java.util.concurrent.Future<?> f : tasks) f.cancel(true);
+                throw ex;
+            } finally {
+                agent.recountTable();
+            }
+            progress.accept(done.sum());
+        }
+
+        /** Rethrows what a finished worker died of, if anything (workers are Runnables, so it is unchecked). */
+        private static void rethrowFailure(java.util.concurrent.Future<?> f) throws InterruptedException {
+            try {
+                f.get();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Error) throw (Error) ex.getCause();
+                throw (RuntimeException) ex.getCause();
+            }
+        }
+
+        long completed() { return done.sum(); }
+        long xWins() { return xWins.sum(); }
+        long oWins() { return oWins.sum(); }
+        long draws() { return draws.sum(); }
+    }
+
+    // ========= Convergence =========
+    /**
+     * Trains until the table stops changing instead of for a fixed episode count.
+     * Episodes run in windows; after each one the largest and mean change of any
+     * visited Q-value over the window are measured, along with the share of a fixed
+     * probe set of positions (those visited so far) whose greedy move changed. Training stops once all three
+     * stay at or below their thresholds for {@code patience} windows in a row, or at
+     * the episode budget. Epsilon follows the measured progress instead of the
+     * per-episode decay: after each window it is set between the floor and its
+     * starting value in proportion to the smoothed policy change rate, relative to
+     * the highest rate so far.
+     */
+    static final class Convergence {
+        /**
+         * When to stop. Immutable. With a constant alpha the table never settles
+         * exactly: one +-1 outcome still moves some rarely visited entry by up to
+         * 2 * alpha in a late window, so the default max threshold sits above that
+         * noise (for alpha 0.5), and the mean and the policy change rate decide.
+         */
+        static final class Criteria {
+            static final Criteria DEFAULT = new Criteria(10_000, 1.5, 0.01, 0.03, 2, 1000);
+
+            final int window;
+            final double maxDelta, meanDelta, policyChange;
+            final int patience, probes;
+
+            Criteria(int window, double maxDelta, double meanDelta, double policyChange, int patience, int probes) {
+                if (window < 1 || patience < 1 || probes < 1) throw new IllegalArgumentException("window, patience and probes must be at least 1");
+                if (!(maxDelta >= 0 && meanDelta >= 0 && policyChange >= 0)) throw new IllegalArgumentException("Thresholds must not be negative");
+                this.window = window;
+                this.maxDelta = maxDelta;
+                this.meanDelta = meanDelta;
+                this.policyChange = policyChange;
+                this.patience = patience;
+                this.probes = probes;
+            }
+
+            @Override public String toString() {
+                return String.format("window=%d max dQ<=%.3g mean dQ<=%.3g policy change<=%.3g%% patience=%d probes=%d",
+                        window, maxDelta, meanDelta, policyChange * 100, patience, probes);
+            }
+        }
+
+        /** What one window measured; {@code episodes} counts from the start of the run. */
+        static final class Window {
+            final long episodes;
+            final double maxDelta, meanDelta, policyChange, epsilon;
+            /** 0..1: how far (on a log scale) the slowest smoothed metric has come from its peak down to its threshold. */
+            final double estimate;
+            /** Consecutive windows, up to this one, that met every threshold. */
+            final int stable;
+            final boolean converged;
+
+            Window(long episodes, double maxDelta, double meanDelta, double policyChange, double epsilon,
+                   double estimate, int stable, boolean converged) {
+                this.episodes = episodes;
+                this.maxDelta = maxDelta;
+                this.meanDelta = meanDelta;
+                this.policyChange = policyChange;
+                this.epsilon = epsilon;
+                this.estimate = estimate;
+                this.stable = stable;
+                this.converged = converged;
+            }
+
+            String summary() {
+                return String.format("max dQ=%.3g  mean dQ=%.3g  policy change=%.2f%%  epsilon=%.4f  converged %.0f%%",
+                        maxDelta, meanDelta, policyChange * 100, epsilon, estimate * 100);
+            }
+        }
+
+        private final QLearningAgent agent;
+        private final ParallelTrainer trainer;
+        private final Criteria criteria;
+        private final int[] probes;
+
+        Convergence(QLearningAgent agent, TrainMode mode, int threads, Criteria criteria) {
+            if (!mode.episodic()) throw new IllegalArgumentException(mode + " does not play episodes");
+            this.agent = agent;
+            this.trainer = new ParallelTrainer(agent, mode, threads).holdEpsilon();
+            this.criteria = criteria;
+            // the same positions every run, so rates are comparable across runs
+            int[] all = reachableCodes(false);
+            Random rnd = new Random(1);
+            for (int i = all.length - 1; i > 0; i--) {
+                int j = rnd.nextInt(i + 1), t = all[i];
+                all[i] = all[j];
+                all[j] = t;
+            }
+            this.probes = java.util.Arrays.copyOf(all, Math.min(criteria.probes, all.length));
+        }
+
+        /**
+         * Trains window by window until converged or {@code budget} episodes, handing the
+         * running episode count to {@code progress} and each window to {@code afterWindow}
+         * (both on the calling thread); returns the last window.
+         */
+        Window run(long budget, LongConsumer progress, Consumer<Window> afterWindow) throws InterruptedException {
+            final double epsStart = agent.getEpsilon(), epsMin = Math.min(agent.getEpsilonMin(), epsStart);
+            QSnapshot before = agent.publishSnapshot();
+            int[] moves = greedyMoves();
+            // max dQ, mean dQ and policy change: highest so far, and smoothed over windows
+            double[] peak = new double[3], smoothed = null;
+            int stable = 0;
+            Window w = null;
+            while (trainer.completed() < budget) {
+                trainer.run(Math.min(criteria.window, budget - trainer.completed()), progress);
+                QSnapshot after = agent.publishSnapshot();
+                double[] change = after.change(before);
+                int[] now = greedyMoves();
+                // only visited probes count: the rest keep the default move whatever the mode never trains
+                int changed = 0, visited = 0;
+                for (int i = 0; i < now.length; i++) {
+                    if (!after.visited(probes[i])) continue;
+                    visited++;
+                    if (now[i] != moves[i]) changed++;
+                }
+                double policy = (visited == 0) ? 1.0 : changed / (double) visited;
+                before = after;
+                moves = now;
+
+                boolean met = change[0] <= criteria.maxDelta && change[1] <= criteria.meanDelta && policy <= criteria.policyChange;
+                stable = met ? stable + 1 : 0;
+                double[] m = {change[0], change[1], policy};
+                if (smoothed == null) smoothed = m.clone();
+                for (int i = 0; i < 3; i++) {
+                    peak[i] = Math.max(peak[i], m[i]);
+                    smoothed[i] = 0.5 * smoothed[i] + 0.5 * m[i];
+                }
+                double estimate = met ? 1.0 : Math.min(progressTo(peak[0], smoothed[0], criteria.maxDelta),
+                        Math.min(progressTo(peak[1], smoothed[1], criteria.meanDelta), progressTo(peak[2], smoothed[2], criteria.policyChange)));
+                double eps = (peak[2] > 0) ? epsMin + (epsStart - epsMin) * smoothed[2] / peak[2] : epsMin;
+                agent.setEpsilon(eps);
+                w = new Window(trainer.completed(), change[0], change[1], policy, eps, estimate, stable, stable >= criteria.patience);
+                afterWindow.accept(w);
+                if (w.converged) break;
+            }
+            return w;
+        }
+
+        long completed() { return trainer.completed(); }
+
+        /** Fraction of the way from {@code from} down to {@code threshold} that {@code value} has come, on a log scale. */
+        private static double progressTo(double from, double value, double threshold) {
+            if (value <= threshold) return 1.0;
+            if (from <= threshold || value >= from) return 0.0;
+            return Math.log(from / value) / Math.log(from / threshold);
+        }
+
+        private int[] greedyMoves() {
+            int[] m = new int[probes.length];
+            for (int i = 0; i < probes.length; i++) m[i] = agent.greedyAction(probes[i]);
+            return m;
+        }
+    }
+
+    // ========= Value iteration =========
+    /**
+     * Trains the dense table without episodes: every reachable position is backed up
+     * once per sweep (QLearningAgent.backup) until the largest change in a sweep
+     * falls below a threshold. Sweeps are split over a fork-join pool. Gauss-Seidel
+     * sweeps update the table in place, deepest positions first, so values settle in
+     * a few sweeps. Synchronous sweeps read a copy taken at the start of each sweep.
+     */
+    static final class ValueIteration {
+        private static final int LEAF = 128; // rows per fork-join leaf task
+
+        private final QLearningAgent agent;
+        private final int threads;
+        private final boolean synchronous;
+        private final int[] order;
+
+        ValueIteration(QLearningAgent agent, int threads, boolean synchronous) {
+            this.agent = agent;
+            this.threads = Math.max(1, threads);
+            this.synchronous = synchronous;
+            this.order = agent.sweepOrder();
+        }
+
+        int states() { return order.length; }
+
+        /** One sweep over every row; returns the largest change. */
+        double sweep() {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try { return sweep(pool); }
+            finally { pool.shutdown(); agent.recountTable(); }
+        }
+
+        private double sweep(ForkJoinPool pool) {
+            double[] live = agent.tableValues();
+            double[] from = synchronous ? live.clone() : live;
+            return pool.invoke(new Part(from, 0, order.length));
+        }
+
+        /**
+         * Sweeps until the largest change is at most {@code threshold} or
+         * {@code maxSweeps} have run, handing (sweep, max delta) to {@code progress}
+         * after each. Returns the number of sweeps run.
+         */
+        int run(int maxSweeps, double threshold, java.util.function.ObjIntConsumer<Double> progress) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            int n = 0;
+            try {
+                while (n < maxSweeps) {
+                    double delta = sweep(pool);
+                    progress.accept(delta, ++n);
+                    if (delta <= threshold) break;
+                }
+            } finally {
+                pool.shutdown();
+                agent.recountTable();
+            }
+            return n;
+        }
+
+        private final class Part extends RecursiveTask<Double> {
+            private static final long serialVersionUID = 1L;
+            private final double[] from;
+            private final int lo, hi;
+
+            Part(double[] from, int lo, int hi) { this.from = from; this.lo = lo; this.hi = hi; }
+
+            @Override protected Double compute() {
+                if (hi - lo <= LEAF) {
+                    double delta = 0;
+                    for (int i = lo; i < hi; i++) delta = Math.max(delta, agent.backup(order[i], from));
+                    return delta;
+                }
+                int mid = (lo + hi) >>> 1;
+                Part right = new Part(from, mid, hi);
+                right.fork(); // the deeper half runs here first, so a lone thread keeps the sweep order
+                double left = new Part(from, lo, mid).compute();
+                return Math.max(left, right.join());
+            }
+        }
+    }
+
+    // ========= Tournament evaluation =========
+    /** A move picker for evaluation games. Must be safe to call from many threads at once. */
+    interface Policy { int move(int x, int o, Random rnd); }
+
+    /**
+     * Plays a candidate policy against an opponent for many games, spread over a
+     * fork-join pool in fixed-size chunks (a parallel stream run inside the pool).
+     * Each chunk uses its thread's ThreadLocalRandom. The candidate alternates
+     * between X and O. Running totals are streamed to a callback while the games run.
+     */
+    static final class Tournament {
+        private static final int CHUNK = 16384;
+
+        static final Policy RANDOM = (x, o, rnd) -> {
+            int legal = legalMask(x, o);
+            return nthLegal(legal, rnd.nextInt(Integer.bitCount(legal)));
+        };
+        static final Policy SOLVER = (x, o, rnd) -> Solver.get().bestMove(code(x, o), rnd);
+
+        /** Greedy moves from a table; reads only, so it never mutates the agent. */
+        static Policy greedy(QLearningAgent agent) { return (x, o, rnd) -> agent.greedyAction(code(x, o)); }
+
+        /** Any 3x3 agent's moves. */
+        static Policy of(Agent agent) { return (x, o, rnd) -> agent.chooseMove(x, o, rnd); }
+
+        /**
+         * "random", "solver", "legacy" (the old serialized table), "mcts[:N|:Nms]" (one
+         * search thread per game) or the path of a saved table or compiled policy.
+         */
+        static Policy policy(String spec) throws IOException, ClassNotFoundException {
+            switch (spec) {
+                case "random": return RANDOM;
+                case "solver": return SOLVER;
+                case "legacy": spec = LEGACY_QTABLE_FILE; break;
+                default:
+                    if (spec.equals("mcts") || spec.startsWith("mcts:")) return of(Mcts.parse(spec, Geometry.CLASSIC, 1));
+                    break;
+            }
+            if (!new File(spec).exists()) throw new FileNotFoundException(spec);
+            if (CompiledPolicy.isPolicyFile(spec)) return CompiledPolicy.loadFrom(spec);
+            int hidden = QNetAgent.hiddenOf(spec);
+            if (hidden >= 0) {
+                QNetAgent net = new QNetAgent(Geometry.CLASSIC, hidden, 1);
+                net.loadFrom(spec);
+                return of(net);
+            }
+            QLearningAgent snapshot = new QLearningAgent('O', 'X');
+            snapshot.loadFrom(spec);
+            return greedy(snapshot);
+        }
+
+        /** Win/draw/loss counts from the candidate's point of view. */
+        static final class Tally {
+            final long games, wins, draws, losses;
+            Tally(long wins, long draws, long losses) {
+                this.wins = wins; this.draws = draws; this.losses = losses; this.games = wins + draws + losses;
+            }
+
+            /** 95% Wilson score interval for a proportion k/n, as {low, high}. */
+            static double[] wilson(long k, long n) {
+                if (n == 0) return new double[]{0, 1};
+                final double z = 1.96, p = k / (double) n, z2n = z * z / n;
+                double center = (p + z2n / 2) / (1 + z2n);
+                double half = z * Math.sqrt(p * (1 - p) / n + z2n / (4.0 * n)) / (1 + z2n);
+                return new double[]{Math.max(0, center - half), Math.min(1, center + half)};
+            }
+
+            String summary() {
+                return String.format("W/D/L %.2f%%/%.2f%%/%.2f%%", pct(wins), pct(draws), pct(losses));
+            }
+
+            String report() {
+                return String.format("win  %6.2f%%  [%.2f, %.2f]%ndraw %6.2f%%  [%.2f, %.2f]%nloss %6.2f%%  [%.2f, %.2f]",
+                        pct(wins), 100 * wilson(wins, games)[0], 100 * wilson(wins, games)[1],
+                        pct(draws), 100 * wilson(draws, games)[0], 100 * wilson(draws, games)[1],
+                        pct(losses), 100 * wilson(losses, games)[0], 100 * wilson(losses, games)[1]);
+            }
+
+            private double pct(long k) { return games == 0 ? 0 : 100.0 * k / games; }
+        }
+
+        private final Policy candidate, opponent;
+        private final int parallelism;
+        private final LongAdder wins = new LongAdder(), draws = new LongAdder(), losses = new LongAdder();
+
+        Tournament(Policy candidate, Policy opponent, int parallelism) {
+            this.candidate = candidate;
+            this.opponent = opponent;
+            this.parallelism = Math.max(1, parallelism);
+        }
+
+        Tally tally() { return new Tally(wins.sum(), draws.sum(), losses.sum()); }
+
+        /** Plays {@code games} games, handing the running tally to {@code progress} every {@code reportMs}. */
+        Tally run(long games, long reportMs, Consumer<Tally> progress) throws InterruptedException, ExecutionException {
+            final int chunks = (int) ((games + CHUNK - 1) / CHUNK);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                ForkJoinTask<?> task = pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(chunk -> {
+                    Random rnd = ThreadLocalRandom.current();
+                    long first = (long) chunk * CHUNK, last = Math.min(games, first + CHUNK);
+                    long w = 0, d = 0, l = 0;
+                    for (long g = first; g < last; g++) {
+                        boolean candidateIsX = (g & 1) == 0;
+                        char winner = candidateIsX ? play(candidate, opponent, rnd) : play(opponent, candidate, rnd);
+                        if (winner == ' ') d++;
+                        else if ((winner == 'X') == candidateIsX) w++;
+                        else l++;
+                    }
+                    wins.add(w); draws.add(d); losses.add(l);
+                }));
+                while (true) {
+                    try {
+                        task.get(reportMs, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (java.util.concurrent.TimeoutException ex) {
+                        progress.accept(tally());
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            Tally result = tally();
+            progress.accept(result);
+            return result;
+        }
+
+        /** One game; returns 'X', 'O' or ' ' for a draw. */
+        static char play(Policy xPlayer, Policy oPlayer, Random rnd) {
+            int x = 0, o = 0;
+            while (true) {
+                x |= 1 << xPlayer.move(x, o, rnd);
+                if (WINS[x]) return 'X';
+                if ((x | o) == FULL) return ' ';
+                o |= 1 << oPlayer.move(x, o, rnd);
+                if (WINS[o]) return 'O';
+            }
+        }
+    }
+
+    // ========= Hyperparameter sweep =========
+    /**
+     * Trains one isolated QLearningAgent per hyperparameter configuration, several at
+     * a time (one configuration per thread), and ranks them by strength per second of
+     * training. Strength is the share of reachable positions where the greedy move is
+     * optimal (1 - Solver optimality gap). Each agent is also scored against a random
+     * player. Configurations come from a grid (every combination of listed values) or
+     * from random search, which samples ranges and picks from lists. Only the scores of
+     * each configuration are kept, plus the encoded table of the best one so far, so
+     * memory does not grow with the number of configurations.
+     */
+    static final class Sweep {
+        /** Values one hyperparameter may take: a list, or a range lo:hi (random search only). */
+        static final class Param {
+            final String name;
+            final double[] values; // null for a range
+            final double lo, hi;
+            final boolean logScale; // sample 1 - value log-uniformly (for decays close to 1)
+
+            private Param(String name, double[] values, double lo, double hi, boolean logScale) {
+                this.name = name; this.values = values; this.lo = lo; this.hi = hi; this.logScale = logScale;
+            }
+
+            /** "v1,v2,..." or "lo:hi". */
+            static Param parse(String name, String spec, boolean logScale) {
+                try {
+                    if (spec.contains(":")) {
+                        String[] p = spec.split(":");
+                        if (p.length != 2) throw new NumberFormatException(spec);
+                        return new Param(name, null, Double.parseDouble(p[0]), Double.parseDouble(p[1]), logScale);
+                    }
+                    return new Param(name, java.util.Arrays.stream(spec.split(",")).mapToDouble(v -> Double.parseDouble(v.trim())).toArray(),
+                            0, 0, logScale);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("--" + name + " expects v1,v2,... or lo:hi, got " + spec);
+                }
+            }
+
+            double sample(Random rnd) {
+                if (values != null) return values[rnd.nextInt(values.length)];
+                if (!logScale) return lo + (hi - lo) * rnd.nextDouble();
+                double a = Math.log(1 - lo), b = Math.log(1 - hi);
+                return 1 - Math.exp(a + (b - a) * rnd.nextDouble());
+            }
+        }
+
+        static final class Config {
+            final double alpha, gamma, epsilon, decay, floor;
+            Config(double alpha, double gamma, double epsilon, double decay, double floor) {
+                this.alpha = alpha; this.gamma = gamma; this.epsilon = epsilon; this.decay = decay; this.floor = floor;
+            }
+            @Override public String toString() {
+                return String.format("alpha=%.3f gamma=%.3f epsilon=%.3f decay=%.6f floor=%.3f", alpha, gamma, epsilon, decay, floor);
+            }
+        }
+
+        static final class Result {
+            final Config config;
+            final double seconds, strength;
+            final Tournament.Tally vsRandom;
+            Result(Config config, double seconds, double strength, Tournament.Tally vsRandom) {
+                this.config = config; this.seconds = seconds; this.strength = strength; this.vsRandom = vsRandom;
+            }
+            double strengthPerSecond() { return strength / seconds; }
+        }
+
+        /** Best first: strength per training second, then strength. */
+        static final java.util.Comparator<Result> RANKING = java.util.Comparator.comparingDouble(Result::strengthPerSecond).reversed()
+                .thenComparing(java.util.Comparator.comparingDouble((Result r) -> r.strength).reversed());
+
+        /** Every combination of the listed values. */
+        static java.util.List<Config> grid(Param alpha, Param gamma, Param epsilon, Param decay, Param floor) {
+            for (Param p : new Param[]{alpha, gamma, epsilon, decay, floor}) {
+                if (p.values == null) throw new IllegalArgumentException("--" + p.name + " is a range; ranges need --samples");
+            }
+            java.util.List<Config> out = new java.util.ArrayList<>();
+            for (double a : alpha.values) for (double g : gamma.values) for (double e : epsilon.values)
+                for (double d : decay.values) for (double f : floor.values) out.add(new Config(a, g, e, d, f));
+            return out;
+        }
+
+        static java.util.List<Config> random(int samples, long seed, Param alpha, Param gamma, Param epsilon, Param decay, Param floor) {
+            Random rnd = new Random(seed);
+            java.util.List<Config> out = new java.util.ArrayList<>();
+            for (int i = 0; i < samples; i++) {
+                out.add(new Config(alpha.sample(rnd), gamma.sample(rnd), epsilon.sample(rnd), decay.sample(rnd), floor.sample(rnd)));
+            }
+            return out;
+        }
+
+        private static final int WARMUP_EPISODES = 50_000;
+
+        private final TrainMode mode;
+        private final long episodes, games;
+        private final int threads;
+        private Result best;         // guarded by this
+        private ByteBuffer bestTable; // guarded by this; best's table in QTableFile form
+
+        Sweep(TrainMode mode, long episodes, long games, int threads) {
+            this.mode = mode;
+            this.episodes = episodes;
+            this.games = games;
+            this.threads = Math.max(1, threads);
+        }
+
+        /** Trains and scores every configuration; returns the results best first, handing each to {@code done} as it finishes. */
+        java.util.List<Result> run(java.util.List<Config> configs, Consumer<Result> done) throws InterruptedException, ExecutionException {
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "ttt-sweep");
+                t.setDaemon(true);
+                return t;
+            });
+            java.util.List<java.util.concurrent.Future<Result>> futures = new java.util.ArrayList<>();
+            try {
+                // warm the JIT up first, so the first configurations are not timed in the interpreter
+                QLearningAgent warmup = new QLearningAgent('O', 'X');
+                for (int i = 0; i < WARMUP_EPISODES; i++) warmup.trainOneEpisode(mode);
+                for (Config c : configs) futures.add(pool.submit(() -> { Result r = train(c); done.accept(r); return r; }));
+                java.util.List<Result> results = new java.util.ArrayList<>();
+                for (java.util.concurrent.Future<Result> f : futures) results.add(f.get());
+                results.sort(RANKING);
+                return results;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private Result train(Config c) throws InterruptedException, ExecutionException {
+            QLearningAgent agent = new QLearningAgent('O', 'X');
+            agent.setHyperparameters(c.alpha, c.gamma, c.epsilon, c.decay, c.floor);
+            long start = System.nanoTime();
+            for (long i = 0; i < episodes; i++) agent.trainOneEpisode(mode);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Solver.Gap gap = Solver.get().optimalityGap(agent);
+            Tournament.Tally vsRandom = new Tournament(Tournament.greedy(agent), Tournament.RANDOM, 1).run(games, Long.MAX_VALUE, t -> { });
+            Result r = new Result(c, seconds, 1 - gap.rate(), vsRandom);
+            synchronized (this) {
+                if (best == null || RANKING.compare(r, best) < 0) {
+                    best = r;
+                    bestTable = agent.publishSnapshot().encode();
+                }
+            }
+            return r;
+        }
+
+        /** The best configuration trained so far (null before the first). */
+        synchronized Result best() { return best; }
+
+        /** The table of {@link #best()}, in QTableFile form (null before the first). */
+        synchronized ByteBuffer bestTable() { return bestTable == null ? null : bestTable.duplicate(); }
+    }
+
+    // ========= Checkpointing =========
+    /**
+     * Writes Q-table checkpoints on a single background thread ("ttt-checkpoint"), so
+     * the EDT and the trainers never wait for the disk. Each checkpoint asks its
+     * Source for the file contents (taking the snapshot on the checkpoint thread),
+     * writes them to FILE.tmp, forces them to disk and atomically renames the result
+     * over FILE. A crash leaves the old file or the new one, never a torn one. Before
+     * FILE is replaced, it is copied to FILE.1, and older copies shift up to FILE.{keep}.
+     */
+    static final class Checkpointer {
+        /** Produces complete file contents; called on the checkpoint thread. */
+        interface Source { ByteBuffer encode() throws IOException; }
+        /** Reads a table file; used by {@link #loadNewest}. */
+        interface Loader { void load(String path) throws Exception; }
+
+        private final int keep;
+        private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ttt-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        private java.util.concurrent.ScheduledFuture<?> periodic;
+
+        Checkpointer(int keep) { this.keep = Math.max(0, keep); }
+
+        /** Queues one checkpoint; the future completes when the file is in place. */
+        java.util.concurrent.CompletableFuture<Void> submit(Source source, String path) {
+            return java.util.concurrent.CompletableFuture.runAsync(() -> {
+                try { write(path, source.encode(), keep); }
+                catch (IOException ex) { throw new java.io.UncheckedIOException(ex); }
+            }, exec);
+        }
+
+        /** Checkpoints every {@code periodMs} until {@link #stopPeriodic}; failures are logged, not fatal. */
+        synchronized void startPeriodic(Source source, String path, long periodMs) {
+            stopPeriodic();
+            if (periodMs <= 0) return;
+            periodic = exec.scheduleWithFixedDelay(() -> {
+                try { write(path, source.encode(), keep); }
+                catch (IOException | RuntimeException ex) { System.err.println("Checkpoint failed: " + ex.getMessage()); }
+            }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void stopPeriodic() {
+            if (periodic != null) { periodic.cancel(false); periodic = null; }
+        }
+
+        /** Blocks until every checkpoint queued so far has been written. */
+        void awaitIdle() throws InterruptedException {
+            try { exec.submit(() -> { }).get(); }
+            catch (ExecutionException ex) { throw new IllegalStateException(ex); }
+        }
+
+        /** Stops periodic checkpoints and the thread once queued ones finish (waiting up to timeoutMs). */
+        void shutdown(long timeoutMs) throws InterruptedException {
+            stopPeriodic();
+            exec.shutdown();
+            exec.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        /** Crash-safe write of {@code data} to {@code path}, keeping {@code keep} older copies. */
+        static void write(String path, ByteBuffer data, int keep) throws IOException {
+            java.nio.file.Path target = Paths.get(path).toAbsolutePath();
+            java.nio.file.Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            try {
+                try (FileChannel ch = FileChannel.open(tmp,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (data.hasRemaining()) ch.write(data);
+                    ch.force(true);
+                }
+                if (keep > 0 && java.nio.file.Files.exists(target)) {
+                    for (int i = keep - 1; i >= 1; i--) {
+                        java.nio.file.Path older = rotated(target, i);
+                        if (java.nio.file.Files.exists(older)) {
+                            java.nio.file.Files.move(older, rotated(target, i + 1), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                        }
+                    }
+                    java.nio.file.Files.copy(target, rotated(target, 1), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                }
+                try {
+                    java.nio.file.Files.move(tmp, target, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+                } catch (java.nio.file.AtomicMoveNotSupportedException ex) {
+                    java.nio.file.Files.move(tmp, target, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                java.nio.file.Files.deleteIfExists(tmp);
+            }
+        }
+
+        static java.nio.file.Path rotated(java.nio.file.Path target, int i) {
+            return target.resolveSibling(target.getFileName() + "." + i);
+        }
+
+        /**
+         * Loads {@code path}, or, if it exists but will not load, the newest rotated copy
+         * that does. Returns the file loaded, or null if there was none.
+         */
+        static String loadNewest(String path, int keep, Loader loader) throws Exception {
+            if (!new File(path).exists()) return null;
+            try {
+                loader.load(path);
+                return path;
+            } catch (Exception ex) {
+                for (int i = 1; i <= keep; i++) {
+                    String copy = rotated(Paths.get(path), i).toString();
+                    if (!new File(copy).exists()) continue;
+                    try {
+                        loader.load(copy);
+                        System.err.println(path + " unreadable (" + ex.getMessage() + "); loaded " + copy);
+                        return copy;
+                    } catch (Exception ignored) {}
+                }
+                throw ex;
+            }
+        }
+    }
+
+    // ========= Trajectory log =========
+    /**
+     * Append-only binary log of the transitions training episodes hand to their
+     * learning rule, so a table can be retrained (with other hyperparameters or
+     * another rule) or the experience inspected without playing the games again.
+     * A log is a directory of segments; a writer starts after the newest one and
+     * rolls to a new segment, at an episode boundary, once it reaches its size limit.
+     * <pre>
+     *   DIR/segment-NNNNN.tlog (little-endian): int magic 'TTTL', int version, int record bytes, int 0,
+     *     then 8-byte records: short s, short s' (-1 = terminal), byte action, byte player
+     *     (0 = X or the lone learner, 1 = O in self-play), byte reward (-1, 0 or +1),
+     *     byte mark (bit 0: first record of an episode; bits 1-2: its winner, 0 draw, 1 X, 2 O)
+     * </pre>
+     */
+    static final class TrajectoryLog {
+        static final int MAGIC = 0x4C545454; // "TTTL" when read little-endian
+        static final int VERSION = 1;
+        static final int HEADER = 16, RECORD = 8;
+        static final int START = 1;
+        static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+        private static final int CHUNK = 16 * 1024;  // a worker's staging buffer
+        private static final int BUFFER = 1 << 20;   // the writer's buffer in front of the channel
+        private static final int MAX_EPISODE = DenseQTable.ACTIONS * RECORD; // at most one transition per move
+
+        private TrajectoryLog() {}
+
+        /** Receives each episode of a log as the records [from, to) of a mapped segment. */
+        interface Episodes { void accept(ByteBuffer log, int from, int to); }
+
+        static char winner(byte mark) {
+            int w = (mark >> 1) & 3;
+            return w == 1 ? 'X' : w == 2 ? 'O' : ' ';
+        }
+
+        static Path segment(Path dir, int n) { return dir.resolve(String.format("segment-%05d.tlog", n)); }
+
+        /** The segments of a log directory, oldest first. */
+        static java.util.List<Path> segments(Path dir) throws IOException {
+            if (!java.nio.file.Files.isDirectory(dir)) return java.util.Collections.emptyList();
+            try (java.util.stream.Stream<Path> files = java.nio.file.Files.list(dir)) {
+                return files.filter(p -> p.getFileName().toString().matches("segment-\\d{5}\\.tlog")).sorted()
+                        .collect(java.util.stream.Collectors.toList());
+            }
+        }
+
+        /**
+         * Maps one segment and hands it to {@code episodes} episode by episode, checking
+         * every record on the way; returns the number of episodes. A torn final record
+         * (from a crash mid-write) is ignored.
+         */
+        static long forEachEpisode(Path segment, Episodes episodes) throws IOException {
+            MappedByteBuffer log;
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                log = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            log.order(ByteOrder.LITTLE_ENDIAN);
+            if (log.capacity() < HEADER || log.getInt(0) != MAGIC || log.getInt(4) != VERSION || log.getInt(8) != RECORD) {
+                throw new IOException(segment + ": not a trajectory log segment");
+            }
+            int end = HEADER + (log.capacity() - HEADER) / RECORD * RECORD;
+            long n = 0;
+            int from = -1;
+            for (int p = HEADER; p < end; p += RECORD) {
+                int s = log.getShort(p), sPrime = log.getShort(p + 2), a = log.get(p + 4), player = log.get(p + 5);
+                if (s < 0 || s >= DenseQTable.STATES || a < 0 || a >= DenseQTable.ACTIONS
+                        || ((DenseQTable.LEGAL[s] >>> a) & 1) == 0 || (player & ~1) != 0
+                        || (sPrime != TERMINAL && (sPrime < 0 || sPrime >= DenseQTable.STATES))) {
+                    throw new IOException(segment + ": corrupt record at offset " + p);
+                }
+                if ((log.get(p + 7) & START) != 0) {
+                    if (from >= 0) { episodes.accept(log, from, p); n++; }
+                    from = p;
+                } else if (from < 0) {
+                    throw new IOException(segment + ": records before the first episode start");
+                }
+            }
+            if (from >= 0) { episodes.accept(log, from, end); n++; }
+            return n;
+        }
+
+        /**
+         * Shared end of a log: recorders hand it whole chunks of episodes, which it
+         * buffers in front of the segment's FileChannel. Thread-safe.
+         */
+        static final class Writer implements Closeable {
+            private final Path dir;
+            private final long segmentBytes;
+            private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+            private final java.util.List<Recorder> recorders = new java.util.ArrayList<>();
+            private FileChannel ch;
+            private int next;
+            private long segmentSize, episodes, bytes;
+            private int segments;
+
+            Writer(Path dir, long segmentBytes) throws IOException {
+                if (segmentBytes < HEADER + MAX_EPISODE || segmentBytes > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("segment size must be between " + (HEADER + MAX_EPISODE) + " and 2 GB: " + segmentBytes);
+                }
+                this.dir = dir;
+                this.segmentBytes = segmentBytes;
+                java.nio.file.Files.createDirectories(dir);
+                java.util.List<Path> existing = TrajectoryLog.segments(dir);
+                if (!existing.isEmpty()) {
+                    String last = existing.get(existing.size() - 1).getFileName().toString();
+                    next = Integer.parseInt(last.substring(8, 13)) + 1;
+                }
+            }
+
+            /** A recorder for one training thread (see Worker); registered until {@link Recorder#close}. */
+            synchronized Recorder recorder() {
+                Recorder r = new Recorder(this);
+                recorders.add(r);
+                return r;
+            }
+
+            private synchronized void release(Recorder r) {
+                if (recorders.remove(r)) r.flush(); // else close() already flushed it
+            }
+
+            synchronized void append(ByteBuffer chunk, int chunkEpisodes) throws IOException {
+                if (ch == null || segmentSize + chunk.remaining() > segmentBytes) roll();
+                if (chunk.remaining() > buf.remaining()) drain();
+                segmentSize += chunk.remaining();
+                bytes += chunk.remaining();
+                buf.put(chunk);
+                episodes += chunkEpisodes;
+            }
+
+            private void roll() throws IOException {
+                if (ch != null) {
+                    drain();
+                    ch.force(false);
+                    ch.close();
+                }
+                ch = FileChannel.open(segment(dir, next++), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                segments++;
+                buf.putInt(MAGIC).putInt(VERSION).putInt(RECORD).putInt(0);
+                segmentSize = HEADER;
+                bytes += HEADER;
+            }
+
+            private void drain() throws IOException {
+                buf.flip();
+                while (buf.hasRemaining()) ch.write(buf);
+                buf.clear();
+            }
+
+            synchronized long episodes() { return episodes; }
+            synchronized long bytes() { return bytes; }
+            synchronized int segments() { return segments; }
+
+            /** Flushes every recorder and the buffer, then syncs and closes; call once training has stopped. */
+            @Override public synchronized void close() throws IOException {
+                for (Recorder r : recorders) r.flush();
+                recorders.clear();
+                if (ch != null) {
+                    drain();
+                    ch.force(false);
+                    ch.close();
+                    ch = null;
+                }
+            }
+        }
+
+        /**
+         * One thread's side of a log: the current episode is staged in its own buffer
+         * (the first record's mark is filled in when the winner is known), and full
+         * chunks of episodes go to the writer, so recording takes no lock per move.
+         */
+        static final class Recorder {
+            private final Writer out;
+            private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            private int episodeStart, chunkEpisodes;
+
+            private Recorder(Writer out) { this.out = out; }
+
+            boolean writesTo(Writer w) { return out == w; }
+
+            void begin() {
+                if (chunk.remaining() < MAX_EPISODE) flush();
+                episodeStart = chunk.position();
+            }
+
+            void record(int player, int s, int a, double r, int sPrime) {
+                chunk.putShort((short) s).putShort((short) sPrime).put((byte) a).put((byte) player).put((byte) r).put((byte) 0);
+            }
+
+            void end(char winner) {
+                if (chunk.position() == episodeStart) return;
+                chunk.put(episodeStart + 7, (byte) (START | (winner == 'X' ? 2 : winner == 'O' ? 4 : 0)));
+                chunkEpisodes++;
+            }
+
+            void flush() {
+                chunk.flip();
+                try {
+                    if (chunk.hasRemaining()) out.append(chunk, chunkEpisodes);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                } finally {
+                    chunk.clear();
+                    chunkEpisodes = 0;
+                }
+            }
+
+            /** Flushes and deregisters from the writer; the recorder is not used again. */
+            void close() { out.release(this); }
+        }
+    }
+
+    // ========= Compiled policy =========
+    /**
+     * A frozen greedy policy: for every state code, the legal moves ranked by Q-value
+     * (best first, ties to the lower cell, -1 past the last legal move), in one
+     * byte[] of {@code ranks} entries per code. It is compiled from an immutable
+     * snapshot, so lookups need neither the Q-table nor any lock and never change it.
+     * Symmetry is already resolved, and a lookup is one array read. Unvisited states
+     * get the same move greedyAction would pick (the first legal cell).
+     * <pre>
+     *   file (little-endian): int magic 'TTTP', int version, int ranks, int codes,
+     *                         then byte[codes * ranks] moves
+     * </pre>
+     */
+    static final class CompiledPolicy implements Policy {
+        static final int MAGIC = 0x50545454; // "TTTP" when read little-endian
+        static final int VERSION = 1;
+        static final int HEADER = 16;
+
+        final int ranks;
+        private final byte[] moves;
+
+        private CompiledPolicy(int ranks, byte[] moves) { this.ranks = ranks; this.moves = moves; }
+
+        static CompiledPolicy compile(QSnapshot snap, int ranks) {
+            if (ranks < 1 || ranks > DenseQTable.ACTIONS) {
+                throw new IllegalArgumentException("ranks must be between 1 and " + DenseQTable.ACTIONS + ": " + ranks);
+            }
+            byte[] moves = new byte[DenseQTable.STATES * ranks];
+            java.util.Arrays.fill(moves, (byte) -1);
+            int[] order = new int[DenseQTable.ACTIONS];
+            for (int code = 0; code < DenseQTable.STATES; code++) {
+                double[] row = snap.row(code); // null: unvisited, every legal move still 0.0
+                int n = 0;
+                for (int m = DenseQTable.LEGAL[code]; m != 0; m &= m - 1) {
+                    int a = Integer.numberOfTrailingZeros(m), j = n++;
+                    double v = (row == null) ? 0.0 : row[a];
+                    // insertion sort, best first; equal values keep cell order
+                    for (; j > 0 && (row == null ? 0.0 : row[order[j - 1]]) < v; j--) order[j] = order[j - 1];
+                    order[j] = a;
+                }
+                for (int k = 0; k < Math.min(n, ranks); k++) moves[code * ranks + k] = (byte) order[k];
+            }
+            return new CompiledPolicy(ranks, moves);
+        }
+
+        /** The greedy move in a state code (-1 when there is no legal move). */
+        int best(int code) { return moves[code * ranks]; }
+
+        /** The move ranked {@code rank} (0 = best) in a state code, or -1 if fewer moves are legal or ranked. */
+        int move(int code, int rank) { return rank < ranks ? moves[code * ranks + rank] : -1; }
+
+        @Override public int move(int x, int o, Random rnd) { return moves[code(x, o) * ranks]; }
+
+        void saveTo(String path) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER + moves.length).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(ranks).putInt(DenseQTable.STATES).put(moves);
+            buf.flip();
+            Checkpointer.write(path, buf, 0);
+        }
+
+        static boolean isPolicyFile(String path) throws IOException {
+            try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                return ch.read(buf) == 4 && buf.getInt(0) == MAGIC;
+            }
+        }
+
+        static CompiledPolicy loadFrom(String path) throws IOException {
+            byte[] bytes = java.nio.file.Files.readAllBytes(Paths.get(path));
+            ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (bytes.length < HEADER || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+                throw new IOException(path + ": not a compiled policy");
+            }
+            int ranks = buf.getInt(8);
+            if (ranks < 1 || ranks > DenseQTable.ACTIONS || buf.getInt(12) != DenseQTable.STATES
+                    || bytes.length != HEADER + DenseQTable.STATES * ranks) {
+                throw new IOException(path + ": truncated or corrupt policy");
+            }
+            byte[] moves = java.util.Arrays.copyOfRange(bytes, HEADER, bytes.length);
+            for (int code = 0; code < DenseQTable.STATES; code++) {
+                for (int k = 0; k < ranks; k++) {
+                    int a = moves[code * ranks + k];
+                    if (a != -1 && (a < 0 || ((DenseQTable.LEGAL[code] >>> a) & 1) == 0)) {
+                        throw new IOException(path + ": illegal move " + a + " for state " + code);
                     }
-                    sPrevO = s; aPrevO = a;
                 }
+            }
+            return new CompiledPolicy(ranks, moves);
+        }
+    }
 
-                if (terminal) {
-                    double rX = 0.0, rO = 0.0;
-                    if (w != null) {
-                        if (w == 'X') { rX = +1.0; rO = -1.0; } else { rX = -1.0; rO = +1.0; }
+    // ========= Inference service =========
+    /**
+     * Local move service for other processes on the same host, over HTTP on the
+     * loopback interface:
+     * <pre>
+     *   GET  /move?board=XO_______   one board in stringify form ('_', '.', '-' or ' ' for an empty cell)
+     *   POST /moves                  one board per line, answered as a JSON array in the same order
+     *   GET  /stats                  request and board counts, p50/p99 handling latency in microseconds
+     * </pre>
+     * A board is answered as {@code {"board":"XO_______","toMove":"X","move":4,"q":[...]}}:
+     * the greedy move and the Q-row peekQRow shows (null for an unvisited state or a
+     * frozen policy; non-finite entries are null). Lookups read the last published
+     * QSnapshot and a CompiledPolicy compiled from it once per epoch, so they never
+     * lock and never contend with a trainer writing the live table. A new epoch is
+     * compiled on one background task while requests keep answering from the previous
+     * one, so compiles never land in a request's latency. Each exchange runs
+     * on its own virtual thread where the JDK has them (21+), else on a cached pool.
+     */
+    static final class InferenceServer {
+        static final int DEFAULT_PORT = 8088;
+        /** Most boards accepted in one POST /moves. */
+        static final int MAX_BATCH = 4096;
+
+        /** A snapshot and the policy compiled from it, published together. */
+        private static final class View {
+            final QSnapshot snap; // null when serving a frozen policy
+            final CompiledPolicy policy;
+            View(QSnapshot snap, CompiledPolicy policy) { this.snap = snap; this.policy = policy; }
+        }
+
+        private final Supplier<QSnapshot> snapshots; // null when serving a frozen policy
+        private volatile View view;
+        private final java.util.concurrent.atomic.AtomicBoolean compiling = new java.util.concurrent.atomic.AtomicBoolean();
+        private final LongAdder requests = new LongAdder(), boards = new LongAdder(), errors = new LongAdder();
+        private final Latency latency = new Latency();
+        private HttpServer http;
+        private ExecutorService executor;
+        private boolean virtual;
+
+        private InferenceServer(Supplier<QSnapshot> snapshots, CompiledPolicy policy) {
+            this.snapshots = snapshots;
+            if (policy != null) view = new View(null, policy);
+        }
+
+        /** Serves whatever snapshot the supplier currently returns, e.g. {@code agent::snapshot}. */
+        static InferenceServer of(Supplier<QSnapshot> snapshots) { return new InferenceServer(snapshots, null); }
+
+        /** Serves a frozen policy: moves only, no Q-rows. */
+        static InferenceServer of(CompiledPolicy policy) { return new InferenceServer(null, policy); }
+
+        /** Serves a saved 3x3 table or compiled policy file. */
+        static InferenceServer forFile(String path) throws IOException, ClassNotFoundException {
+            if (!new File(path).exists()) throw new IllegalArgumentException("No such file: " + path);
+            if (CompiledPolicy.isPolicyFile(path)) return of(CompiledPolicy.loadFrom(path));
+            QLearningAgent agent = new QLearningAgent('O', 'X');
+            agent.loadFrom(path);
+            return of(agent::snapshot);
+        }
+
+        /** Binds 127.0.0.1:port (0 picks a free port) and starts serving; returns the bound port. */
+        synchronized int start(int port) throws IOException {
+            if (http != null) throw new IllegalStateException("already serving");
+            // answers are written after the headers are flushed; without TCP_NODELAY the body
+            // waits out the client's delayed ACK (~40 ms). Read when the first server is created.
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+            if (view == null) view = compile(snapshots.get()); // the one compile a request could otherwise wait on
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/move", ex -> handle(ex, false));
+            http.createContext("/moves", ex -> handle(ex, true));
+            http.createContext("/stats", this::stats);
+            try {
+                // JDK 21+; looked up reflectively so the file still compiles and runs on 17
+                executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                virtual = true;
+            } catch (ReflectiveOperationException ex) {
+                executor = Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "ttt-serve");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            http.setExecutor(executor);
+            http.start();
+            return http.getAddress().getPort();
+        }
+
+        synchronized void stop() {
+            if (http == null) return;
+            http.stop(0);
+            executor.shutdownNow();
+            http = null;
+        }
+
+        synchronized boolean virtualThreads() { return virtual; }
+
+        long requests() { return requests.sum(); }
+
+        /** Server-side handling latency of every request so far. */
+        Latency latency() { return latency; }
+
+        private static View compile(QSnapshot snap) { return new View(snap, CompiledPolicy.compile(snap, 1)); }
+
+        /** The view to answer from; starts compiling a newer epoch in the background if there is one. */
+        private View view() {
+            View v = view;
+            if (snapshots == null) return v;
+            QSnapshot snap = snapshots.get();
+            if (v.snap != snap && compiling.compareAndSet(false, true)) {
+                try {
+                    executor.execute(() -> {
+                        try { view = compile(snap); }
+                        finally { compiling.set(false); }
+                    });
+                } catch (java.util.concurrent.RejectedExecutionException ex) {
+                    compiling.set(false); // stopping
+                }
+            }
+            return v;
+        }
+
+        private void handle(HttpExchange ex, boolean batch) throws IOException {
+            long start = System.nanoTime();
+            StringBuilder out = new StringBuilder(160);
+            int status = 200;
+            try {
+                View v = view();
+                if (!batch) {
+                    String board = "GET".equals(ex.getRequestMethod()) ? queryParam(ex.getRequestURI().getRawQuery(), "board") : null;
+                    if (board == null) {
+                        status = "GET".equals(ex.getRequestMethod()) ? 400 : 405;
+                        out.append("{\"error\":\"expected GET /move?board=...\"}");
+                    } else {
+                        if (!answer(board, v, out)) status = 400;
+                        boards.increment();
+                    }
+                } else if (!"POST".equals(ex.getRequestMethod())) {
+                    status = 405;
+                    out.append("{\"error\":\"expected POST /moves with one board per line\"}");
+                } else {
+                    String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                    int n = 0;
+                    out.append('[');
+                    for (String line : body.split("\n")) {
+                        String board = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+                        if (board.isEmpty()) continue;
+                        if (++n > MAX_BATCH) break;
+                        if (n > 1) out.append(',');
+                        answer(board, v, out);
+                    }
+                    out.append(']');
+                    if (n > MAX_BATCH) {
+                        status = 413;
+                        out.setLength(0);
+                        out.append("{\"error\":\"more than ").append(MAX_BATCH).append(" boards\"}");
+                    } else {
+                        boards.add(n);
                     }
-                    if (sPrevX != null && aPrevX != null) updateQTerminal(sPrevX, aPrevX, rX);
-                    if (sPrevO != null && aPrevO != null) updateQTerminal(sPrevO, aPrevO, rO);
-                    break;
                 }
-                cur = (cur == 'X') ? 'O' : 'X';
+            } catch (RuntimeException e) {
+                status = 500;
+                out.setLength(0);
+                out.append("{\"error\":").append(jsonString(String.valueOf(e))).append('}');
             }
-            epsilon = Math.max(0.05, epsilon * 0.99995);
+            if (status != 200) errors.increment();
+            send(ex, status, out);
+            requests.increment();
+            latency.record(System.nanoTime() - start);
         }
 
-        // ---- Q-learning updates ----
-        private void updateQ(String s, int a, double r, String sPrime) {
-            ensureState(s);
-            ensureState(sPrime);
-            double[] rowS = q.get(s);
-            double[] rowSp = q.get(sPrime);
-            double maxNext = maxOverLegal(rowSp, sPrime);
-            double td = r + gamma * maxNext - rowS[a];
-            rowS[a] += alpha * td;
+        private void stats(HttpExchange ex) throws IOException {
+            View v = view;
+            StringBuilder out = new StringBuilder(160);
+            out.append("{\"requests\":").append(requests.sum())
+               .append(",\"boards\":").append(boards.sum())
+               .append(",\"errors\":").append(errors.sum())
+               .append(",\"p50_us\":").append(latency.percentile(0.50) / 1000.0)
+               .append(",\"p99_us\":").append(latency.percentile(0.99) / 1000.0)
+               .append(",\"epoch\":").append(v == null || v.snap == null ? "null" : String.valueOf(v.snap.epoch))
+               .append(",\"virtualThreads\":").append(virtualThreads()).append('}');
+            send(ex, 200, out);
         }
-        private void updateQTerminal(String s, int a, double r) {
-            ensureState(s);
-            double[] row = q.get(s);
-            double td = r - row[a];
-            row[a] += alpha * td;
+
+        private static void send(HttpExchange ex, int status, CharSequence json) throws IOException {
+            byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json");
+            ex.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+            ex.close();
         }
 
-        // ---- Q-table helpers ----
-        private void ensureState(String s) {
-            if (!q.containsKey(s)) {
-                double[] row = new double[9];
-                java.util.Arrays.fill(row, Double.NEGATIVE_INFINITY);
-                char[] b = s.toCharArray();
-                for (int i = 0; i < 9; i++) if (b[i] == ' ') row[i] = 0.0;
-                q.put(s, row);
+        /** Appends the answer for one board (or its error) as a JSON object; false on an error. */
+        static boolean answer(String board, View v, StringBuilder out) {
+            int c;
+            try {
+                c = parseBoard(board);
+            } catch (IllegalArgumentException ex) {
+                out.append("{\"board\":").append(jsonString(board)).append(",\"error\":").append(jsonString(ex.getMessage())).append('}');
+                return false;
+            }
+            boolean xToMove = Integer.bitCount(decodeX(c)) == Integer.bitCount(decodeO(c));
+            out.append("{\"board\":").append(jsonString(board))
+               .append(",\"toMove\":\"").append(xToMove ? 'X' : 'O')
+               .append("\",\"move\":").append(v.policy.best(c)).append(",\"q\":");
+            double[] row = (v.snap == null) ? null : v.snap.row(c);
+            if (row == null) {
+                out.append("null");
+            } else {
+                out.append('[');
+                for (int a = 0; a < row.length; a++) {
+                    if (a > 0) out.append(',');
+                    if (Double.isFinite(row[a])) out.append(row[a]); else out.append("null");
+                }
+                out.append(']');
             }
+            out.append('}');
+            return true;
         }
-        private double maxOverLegal(double[] row, String sPrime) {
-            double best = -1e9;
-            char[] b = sPrime.toCharArray();
-            for (int i = 0; i < 9; i++) if (b[i] == ' ') best = Math.max(best, row[i]);
-            if (best == -1e9) best = 0.0; // no legal actions (terminal)
-            return best;
+
+        /**
+         * State code of a board in stringify form (any case; '_', '.', '-' or ' ' for an
+         * empty cell). Rejects boards that cannot occur with X moving first, or are over.
+         */
+        static int parseBoard(String board) {
+            if (board.length() != 9) throw new IllegalArgumentException("a board has 9 cells, got " + board.length());
+            int x = 0, o = 0;
+            for (int i = 0; i < 9; i++) {
+                char ch = board.charAt(i);
+                if (ch == 'X' || ch == 'x') x |= 1 << i;
+                else if (ch == 'O' || ch == 'o') o |= 1 << i;
+                else if (ch != ' ' && ch != '_' && ch != '.' && ch != '-') throw new IllegalArgumentException("bad cell '" + ch + "' at " + i);
+            }
+            int lead = Integer.bitCount(x) - Integer.bitCount(o);
+            if (lead != 0 && lead != 1) throw new IllegalArgumentException("X moves first, so X has as many marks as O or one more");
+            if (WINS[x] || WINS[o] || (x | o) == FULL) throw new IllegalArgumentException("the game is over");
+            return code(x, o);
         }
 
-        // PUBLIC: read-only access for overlays / tooltips
-        double[] peekQRow(String state) {
-            if (!q.containsKey(state)) return null;
-            return q.get(state).clone();
+        /** Board of a state code in stringify form, with '_' for empty cells (safe in a URL). */
+        static String boardString(int code) {
+            char[] b = new char[9];
+            for (int i = 0; i < 9; i++, code /= 3) b[i] = (code % 3 == 1) ? 'X' : (code % 3 == 2) ? 'O' : '_';
+            return stringify(b);
         }
 
-        // Persistence
-        void saveTo(String path) throws IOException {
-            try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(path))) {
-                out.writeObject(this);
+        private static String queryParam(String rawQuery, String name) {
+            if (rawQuery == null) return null;
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                    return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                }
             }
+            return null;
         }
-        void loadFrom(String path) throws IOException, ClassNotFoundException {
-            File f = new File(path);
-            if (!f.exists()) return;
-            try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(path))) {
-                QLearningAgent loaded = (QLearningAgent) in.readObject();
-                this.q.clear();
-                this.q.putAll(loaded.q);
-                this.alpha = loaded.alpha;
-                this.gamma = loaded.gamma;
-                this.epsilon = loaded.epsilon;
+
+        static String jsonString(String s) {
+            StringBuilder b = new StringBuilder(s.length() + 2).append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch == '"' || ch == '\\') b.append('\\').append(ch);
+                else if (ch < 0x20) b.append(String.format("\\u%04x", (int) ch));
+                else b.append(ch);
+            }
+            return b.append('"').toString();
+        }
+    }
+
+    /**
+     * Lock-free latency histogram: log-linear buckets, eight per power of two of the
+     * nanosecond value, so a percentile is reported within 12.5% (rounded up).
+     */
+    static final class Latency {
+        private static final int SUB = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+        private final LongAdder total = new LongAdder();
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(1, nanos)));
+            total.increment();
+        }
+
+        long count() { return total.sum(); }
+
+        /** Upper bound, in nanoseconds, of the bucket holding the p-quantile (0 when empty). */
+        long percentile(double p) {
+            long[] c = new long[counts.length()];
+            long n = 0;
+            for (int i = 0; i < c.length; i++) n += c[i] = counts.get(i);
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * n)), seen = 0;
+            for (int i = 0; i < c.length; i++) {
+                if ((seen += c[i]) >= rank) return upper(i);
+            }
+            return upper(c.length - 1);
+        }
+
+        // 1..7 get a bucket each; from 8 on, the top four bits pick one of eight per power of two
+        private static int bucket(long v) {
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            return (e < 3) ? (int) v : (e - 2) * SUB + (int) ((v >>> (e - 3)) & (SUB - 1));
+        }
+
+        private static long upper(int i) {
+            if (i < SUB) return i;
+            int e = i / SUB + 2, sub = i % SUB;
+            return ((long) (SUB + sub + 1) << (e - 3)) - 1;
+        }
+    }
+
+    // ========= Training telemetry =========
+    /** JMX view of a QLearningAgent's training (ObjectName {@code TTT_RL:type=TrainingStats}). */
+    public interface TrainingStatsMXBean {
+        long getEpisodes();
+        long getUpdates();
+        double getEpisodesPerSecond();
+        double getUpdatesPerSecond();
+        int getStates();
+        long getApproxMemoryBytes();
+        double getEpsilon();
+        double getXWinRate();
+        double getOWinRate();
+        double getDrawRate();
+        double getMeanAbsTdError();
+        long[] getTdErrorHistogram();
+        String[] getTdErrorBuckets();
+    }
+
+    /**
+     * Training counters for one agent. Hot paths write only to a thread-confined
+     * {@link Local} buffer that is folded into the shared LongAdders every
+     * {@code FLUSH_EVERY} episodes, so telemetry can stay on in long runs. A
+     * sampler turns the running totals into rates and rolling (per-interval)
+     * win/draw rates and TD-error histograms, and can append each sample to a CSV file.
+     */
+    static final class TrainingStats implements TrainingStatsMXBean {
+        static final int FLUSH_EVERY = 64;
+        // |td| histogram by binary exponent: bucket 0 is < 2^-20, the last is >= 1
+        static final int MIN_EXP = -20, BUCKETS = 22;
+
+        private final QLearningAgent agent;
+        private final LongAdder episodes = new LongAdder(), updates = new LongAdder();
+        private final LongAdder xWins = new LongAdder(), oWins = new LongAdder();
+        private final DoubleAdder absTdSum = new DoubleAdder();
+        private final LongAdder[] tdHist = new LongAdder[BUCKETS];
+
+        // last sample (guarded by this)
+        private long lastTime = System.nanoTime(), lastEpisodes, lastUpdates, lastX, lastO;
+        private double lastAbsTd;
+        private final long[] lastHist = new long[BUCKETS];
+        private double episodesPerSec, updatesPerSec, xRate, oRate, drawRate, meanAbsTd;
+        private long[] windowHist = new long[BUCKETS];
+
+        private ScheduledExecutorService sampler;
+        private PrintWriter csv;
+
+        TrainingStats(QLearningAgent agent) {
+            this.agent = agent;
+            for (int i = 0; i < BUCKETS; i++) tdHist[i] = new LongAdder();
+        }
+
+        Local local() { return new Local(); }
+
+        /** Thread-confined accumulator; call {@link #flush()} when the thread finishes. */
+        final class Local {
+            private int episodes, updates, xWins, oWins;
+            private double absTdSum;
+            private final int[] hist = new int[BUCKETS];
+
+            void td(double td) {
+                double a = Math.abs(td);
+                int b = (a == 0) ? 0 : Math.getExponent(a) - MIN_EXP + 1;
+                hist[b < 0 ? 0 : b >= BUCKETS ? BUCKETS - 1 : b]++;
+                absTdSum += a;
+                updates++;
+            }
+
+            void episode(char winner) {
+                if (winner == 'X') xWins++; else if (winner == 'O') oWins++;
+                if (++episodes == FLUSH_EVERY) flush();
+            }
+
+            void flush() {
+                TrainingStats.this.episodes.add(episodes);
+                TrainingStats.this.updates.add(updates);
+                TrainingStats.this.xWins.add(xWins);
+                TrainingStats.this.oWins.add(oWins);
+                TrainingStats.this.absTdSum.add(absTdSum);
+                for (int i = 0; i < BUCKETS; i++) {
+                    if (hist[i] != 0) { tdHist[i].add(hist[i]); hist[i] = 0; }
+                }
+                episodes = updates = xWins = oWins = 0;
+                absTdSum = 0;
+            }
+        }
+
+        /** Recomputes rates and rolling windows from the totals since the previous sample. */
+        synchronized void sample() {
+            long now = System.nanoTime();
+            long e = episodes.sum(), u = updates.sum(), xw = xWins.sum(), ow = oWins.sum();
+            double td = absTdSum.sum();
+            double dt = Math.max(1e-9, (now - lastTime) / 1e9);
+            episodesPerSec = (e - lastEpisodes) / dt;
+            updatesPerSec = (u - lastUpdates) / dt;
+            long we = e - lastEpisodes, wu = u - lastUpdates;
+            if (we > 0) {
+                xRate = (xw - lastX) / (double) we;
+                oRate = (ow - lastO) / (double) we;
+                drawRate = 1.0 - xRate - oRate;
+            }
+            if (wu > 0) {
+                meanAbsTd = (td - lastAbsTd) / wu;
+                long[] window = new long[BUCKETS];
+                for (int i = 0; i < BUCKETS; i++) {
+                    long h = tdHist[i].sum();
+                    window[i] = h - lastHist[i];
+                    lastHist[i] = h;
+                }
+                windowHist = window;
+            }
+            lastTime = now; lastEpisodes = e; lastUpdates = u; lastX = xw; lastO = ow; lastAbsTd = td;
+            if (csv != null) writeCsvRow();
+        }
+
+        /**
+         * Registers the MBean (once per JVM) and samples every {@code periodMs}; with a
+         * non-null {@code csvPath}, each sample is also appended there.
+         */
+        synchronized void startSampling(long periodMs, String csvPath) throws IOException {
+            stopSampling();
+            try {
+                javax.management.ObjectName name = new javax.management.ObjectName("TTT_RL:type=TrainingStats");
+                javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(name)) server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            } catch (javax.management.JMException ex) {
+                System.err.println("JMX registration failed: " + ex.getMessage());
+            }
+            if (csvPath != null) {
+                boolean fresh = !new File(csvPath).exists();
+                csv = new PrintWriter(new FileWriter(csvPath, true));
+                if (fresh) {
+                    StringBuilder header = new StringBuilder("time_ms,episodes,updates,episodes_per_sec,updates_per_sec,"
+                            + "states,memory_bytes,epsilon,x_win_rate,o_win_rate,draw_rate,mean_abs_td");
+                    for (String b : getTdErrorBuckets()) header.append(",td_").append(b);
+                    csv.println(header);
+                }
+            }
+            sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ttt-stats");
+                t.setDaemon(true);
+                return t;
+            });
+            sampler.scheduleAtFixedRate(this::sample, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void stopSampling() {
+            if (sampler != null) { sampler.shutdownNow(); sampler = null; }
+            if (csv != null) { csv.close(); csv = null; }
+        }
+
+        private void writeCsvRow() {
+            StringBuilder row = new StringBuilder();
+            row.append(System.currentTimeMillis()).append(',').append(lastEpisodes).append(',').append(lastUpdates);
+            row.append(String.format(java.util.Locale.ROOT, ",%.1f,%.1f,%d,%d,%.5f,%.4f,%.4f,%.4f,%.6g",
+                    episodesPerSec, updatesPerSec, getStates(), getApproxMemoryBytes(), getEpsilon(),
+                    xRate, oRate, drawRate, meanAbsTd));
+            for (long h : windowHist) row.append(',').append(h);
+            csv.println(row);
+            csv.flush();
+        }
+
+        @Override public long getEpisodes() { return episodes.sum(); }
+        @Override public long getUpdates() { return updates.sum(); }
+        @Override public synchronized double getEpisodesPerSecond() { return episodesPerSec; }
+        @Override public synchronized double getUpdatesPerSecond() { return updatesPerSec; }
+        @Override public int getStates() { return agent.tableSize(); }
+        @Override public long getApproxMemoryBytes() { return agent.tableBytes(); }
+        @Override public double getEpsilon() { return agent.getEpsilon(); }
+        @Override public synchronized double getXWinRate() { return xRate; }
+        @Override public synchronized double getOWinRate() { return oRate; }
+        @Override public synchronized double getDrawRate() { return drawRate; }
+        @Override public synchronized double getMeanAbsTdError() { return meanAbsTd; }
+        @Override public synchronized long[] getTdErrorHistogram() { return windowHist.clone(); }
+        @Override public String[] getTdErrorBuckets() {
+            String[] labels = new String[BUCKETS];
+            labels[0] = "lt_2^" + MIN_EXP;
+            for (int i = 1; i < BUCKETS - 1; i++) labels[i] = "2^" + (MIN_EXP + i - 1);
+            labels[BUCKETS - 1] = "ge_2^0";
+            return labels;
+        }
+    }
+
+    // ========= Headless entry point =========
+    /**
+     * Command-line mode for servers without a display: {@code java TTT_RL train [options]}
+     * trains the same QLearningAgent the GUI uses and writes it to the file the GUI loads.
+     */
+    static final class Headless {
+        private static final String USAGE = String.join(System.lineSeparator(),
+                "usage: java TTT_RL train [options]",
+                "       java TTT_RL bench [options]",
+                "       java TTT_RL gap [--in " + QTABLE_FILE + "]",
+                "       java TTT_RL eval [options]",
+                "       java TTT_RL convert [--in " + LEGACY_QTABLE_FILE + "] [--out " + QTABLE_FILE + "]",
+                "       java TTT_RL freeze [--in " + QTABLE_FILE + "] [--out " + POLICY_FILE + "] [--ranks N]",
+                "       java TTT_RL curve [options]",
+                "       java TTT_RL sweep [options]",
+                "       java TTT_RL replay --log DIR [options]",
+                "       java TTT_RL serve [--in " + QTABLE_FILE + "] [--port " + InferenceServer.DEFAULT_PORT + "] [--report-ms N]",
+                "       java TTT_RL loadgen [options]",
+                "",
+                "train:",
+                "  --episodes N      episodes to train (default 50000)",
+                "  --mode M          selfplay | legacy | solver | vi (default selfplay)",
+                "  --solver-eps E    random-move rate of the solver opponent (default 0.1)",
+                "  --threads N       worker threads (default: available cores)",
+                "  --sweeps N        vi: most sweeps to run (default 100)",
+                "  --threshold T     vi: stop once a sweep changes no Q-value by more than T (default 1e-9)",
+                "  --synchronous     vi: sweep from a copy of the table instead of in place (Gauss-Seidel)",
+                "  --alpha A         learning rate (default 0.5, or the --in table's)",
+                "  --gamma G         discount (default 0.9, or the --in table's)",
+                "  --epsilon E       starting exploration rate (default 0.2, or the --in table's)",
+                "  --decay D         per-episode epsilon decay (default 0.99995, or the --in table's)",
+                "  --eps-min F       epsilon floor (default 0.05, or the --in table's)",
+                "  --symmetry        store one row per D4 symmetry class",
+                "  --learn RULE      onestep | nstep | lambda (default onestep)",
+                "  --n N             lookahead of nstep returns, 1-9 (default 3)",
+                "  --lambda L        trace decay of lambda, 0-1 (default 0.8)",
+                "  --replay N        per-thread experience replay of the last N moves (default 0 = off)",
+                "  --replay-batch B  moves replayed after each episode (default 32)",
+                "  --until-stable    train in windows until Q-values and the greedy policy stop changing,",
+                "                    with epsilon set from the policy change rate; --episodes is the budget",
+                "  --window N        until-stable: episodes per window (default " + Convergence.Criteria.DEFAULT.window + ")",
+                "  --max-dq X        until-stable: largest |dQ| per window (default " + Convergence.Criteria.DEFAULT.maxDelta + ")",
+                "  --mean-dq X       until-stable: mean |dQ| per window (default " + Convergence.Criteria.DEFAULT.meanDelta + ")",
+                "  --policy-change F until-stable: share of visited probe positions whose greedy move changed (default "
+                        + Convergence.Criteria.DEFAULT.policyChange + ")",
+                "  --patience N      until-stable: windows in a row that must meet all three (default "
+                        + Convergence.Criteria.DEFAULT.patience + ")",
+                "  --probes N        until-stable: size of the fixed probe set (default " + Convergence.Criteria.DEFAULT.probes + ")",
+                "  --board RxCxK     board and line length, e.g. 4x4x4 (default 3x3x3); other",
+                "                    boards train on one thread and support selfplay | legacy",
+                "  --max-states N    row budget of the non-3x3 table (default " + MAX_STATES + ")",
+                "  --net linear|H    train a Q-network (linear, or H hidden ReLU units) instead of a table;",
+                "                    any board, selfplay or legacy, --alpha is the learning rate (default 0.05)",
+                "  --batch B         --net: transitions per gradient step (default " + NET_BATCH + ")",
+                "  --in PATH         continue from an existing Q-table",
+                "  --out PATH        where to write the Q-table (default " + QTABLE_FILE + ")",
+                "  --checkpoint-ms N also checkpoint to --out every N ms while training (default 0 = off)",
+                "  --keep N          older copies kept as --out.1 .. --out.N (default " + CHECKPOINT_KEEP + ")",
+                "  --report-ms N     stats interval in milliseconds (default 1000)",
+                "  --jmx             publish TTT_RL:type=TrainingStats while training",
+                "  --stats-csv PATH  append a telemetry row every --report-ms (implies --jmx)",
+                "  --record DIR      append every episode's transitions to a trajectory log in DIR",
+                "  --segment-mb N    size at which the log rolls to a new segment (default "
+                        + (TrajectoryLog.DEFAULT_SEGMENT_BYTES >> 20) + ")",
+                "",
+                "eval:",
+                "  --in PATH         table or frozen policy whose greedy moves are evaluated (default " + QTABLE_FILE + ")",
+                "  --vs OPPONENT     random | solver | legacy | PATH of a saved table or policy (default random)",
+                "                    --in and --vs also take mcts, mcts:N (N rollouts/move) or mcts:Nms",
+                "  --games N         games to play (default 1000000)",
+                "  --threads N       fork-join parallelism (default: available cores)",
+                "  --report-ms N     progress interval in milliseconds (default 1000)",
+                "",
+                "curve (MCTS strength and latency per budget, next to the table agent):",
+                "  --budgets LIST    rollouts per move, comma-separated (default 10,30,100,300,1000,3000)",
+                "  --threads N       root-parallel search threads (default: available cores)",
+                "  --in PATH         table to compare against (default " + QTABLE_FILE + ")",
+                "  --vs OPPONENT     as for eval (default solver)",
+                "  --games N         games per budget (default 200)",
+                "",
+                "sweep (one isolated agent per configuration, several trained at once):",
+                "  --alpha, --gamma, --epsilon, --decay, --eps-min",
+                "                    v1,v2,... (grid) or lo:hi (needs --samples); defaults are the agent's",
+                "  --samples N       random search: N configurations instead of the full grid",
+                "  --seed S          random-search seed (default 1)",
+                "  --episodes N      training episodes per configuration (default 50000)",
+                "  --mode M          selfplay | legacy | solver (default selfplay)",
+                "  --threads N       configurations trained at once (default: available cores)",
+                "  --games N         games vs random per configuration (default 10000)",
+                "  --top N           rows of the ranking to print (default 10)",
+                "  --csv PATH        write every result as CSV",
+                "  --out PATH        save the best configuration's table (default " + SWEEP_FILE + ";",
+                "                    the previous file is kept as PATH.1)",
+                "  --install         also write it to " + QTABLE_FILE + ", the table the GUI loads",
+                "                    (otherwise copy --out there yourself; the previous file is kept as .1)",
+                "",
+                "replay (train a fresh table from a trajectory log written by train --record):",
+                "  --log DIR         the log directory",
+                "  --epochs N        passes over the log (default 1)",
+                "  --alpha, --gamma, --symmetry, --learn, --n, --lambda, --replay, --replay-batch",
+                "                    as for train",
+                "  --out PATH        where to write the Q-table (default " + QTABLE_FILE + "; the previous file is kept as PATH.1)",
+                "  --inspect         only summarize the log: segments, episodes, transitions, outcomes",
+                "  --print N         also print the first N episodes move by move",
+                "",
+                "serve (GET /move?board=XO_______, POST /moves with one board per line, GET /stats;",
+                "       loopback only; --in is a 3x3 table or a frozen policy, which answers without Q-rows)",
+                "",
+                "loadgen:",
+                "  --port N          service to drive (default: start one on a free port from --in)",
+                "  --in PATH         table or policy the started service serves (default " + QTABLE_FILE + ")",
+                "  --clients N       concurrent clients (default 16)",
+                "  --seconds N       how long to run (default 10)",
+                "  --batch B         boards per request: 1 = GET /move, more = POST /moves (default 1)",
+                "",
+                "bench:",
+                "  --filter TEXT     only benchmarks whose name contains TEXT",
+                "  --tables LIST     table sizes to run, from empty,trained,full (default all)",
+                "  --warmup N        warmup iterations (default 3)",
+                "  --iterations N    measured iterations (default 5)",
+                "  --iter-ms N       milliseconds per iteration (default 500)",
+                "  --out PATH        write results as .csv or .json",
+                "  --baseline PATH   compare against an earlier .csv result file",
+                "  --tolerance PCT   slowdown that counts as a regression (default 10)");
+
+        static void main(String[] args) {
+            System.setProperty("java.awt.headless", "true");
+            try {
+                if ("train".equals(args[0])) {
+                    train(new Args(args, 1));
+                } else if ("eval".equals(args[0])) {
+                    eval(new Args(args, 1));
+                } else if ("gap".equals(args[0])) {
+                    gap(new Args(args, 1));
+                } else if ("convert".equals(args[0])) {
+                    convert(new Args(args, 1));
+                } else if ("freeze".equals(args[0])) {
+                    freeze(new Args(args, 1));
+                } else if ("curve".equals(args[0])) {
+                    curve(new Args(args, 1));
+                } else if ("sweep".equals(args[0])) {
+                    sweep(new Args(args, 1));
+                } else if ("replay".equals(args[0])) {
+                    replay(new Args(args, 1));
+                } else if ("serve".equals(args[0])) {
+                    serve(new Args(args, 1));
+                } else if ("loadgen".equals(args[0])) {
+                    loadgen(new Args(args, 1));
+                } else if ("bench".equals(args[0])) {
+                    if (!Bench.run(new Args(args, 1))) System.exit(3);
+                } else {
+                    System.err.println(USAGE);
+                    System.exit(2);
+                }
+            } catch (IllegalArgumentException ex) {
+                System.err.println(ex.getMessage());
+                System.err.println(USAGE);
+                System.exit(2);
+            } catch (Exception ex) {
+                System.err.println("Failed: " + ex);
+                System.exit(1);
+            }
+        }
+
+        static void eval(Args a) throws Exception {
+            String in = a.get("in", QTABLE_FILE);
+            String vs = a.get("vs", "random");
+            long games = a.getLong("games", 1_000_000);
+            int threads = (int) a.getLong("threads", Runtime.getRuntime().availableProcessors());
+            long reportMs = a.getLong("report-ms", 1000);
+            a.rejectUnknown();
+            Tournament t = new Tournament(Tournament.policy(in), Tournament.policy(vs), threads);
+            long start = System.nanoTime();
+            Tournament.Tally result = t.run(games, reportMs, tally -> {
+                if (tally.games < games) System.out.printf("%,14d games  %s%n", tally.games, tally.summary());
+            });
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s vs %s: %,d games in %.2f s (%,.0f games/s)%n%s%n",
+                    in, vs, result.games, secs, result.games / secs, result.report());
+        }
+
+        /**
+         * Plays MCTS at each rollout budget, then the --in table, against one opponent,
+         * one game at a time, and prints strength next to the mean time per move.
+         */
+        static void curve(Args a) throws Exception {
+            String[] budgets = a.get("budgets", "10,30,100,300,1000,3000").split(",");
+            int threads = (int) a.getLong("threads", Runtime.getRuntime().availableProcessors());
+            String in = a.get("in", QTABLE_FILE);
+            String vs = a.get("vs", "solver");
+            long games = a.getLong("games", 200);
+            a.rejectUnknown();
+            Policy opponent = Tournament.policy(vs);
+            System.out.printf("vs %s, %d games each%n%-36s %12s  %s%n", vs, games, "engine", "ms/move", "W/D/L");
+            for (String b : budgets) {
+                Mcts mcts = new Mcts(Geometry.CLASSIC, Integer.parseInt(b.trim()), 0, threads);
+                try { printCurvePoint(mcts.name(), Tournament.of(mcts), opponent, games); }
+                finally { mcts.close(); }
+            }
+            if (new File(in).exists()) printCurvePoint("Q-table " + in, Tournament.policy(in), opponent, games);
+        }
+
+        private static void printCurvePoint(String name, Policy candidate, Policy opponent, long games) throws Exception {
+            LongAdder moves = new LongAdder(), nanos = new LongAdder();
+            Policy timed = (x, o, rnd) -> {
+                long t0 = System.nanoTime();
+                int m = candidate.move(x, o, rnd);
+                nanos.add(System.nanoTime() - t0);
+                moves.increment();
+                return m;
+            };
+            Tournament.Tally t = new Tournament(timed, opponent, 1).run(games, Long.MAX_VALUE, tally -> { });
+            System.out.printf("%-36s %12.3f  %s%n", name, nanos.sum() / 1e6 / Math.max(1, moves.sum()), t.summary());
+        }
+
+        static void sweep(Args a) throws Exception {
+            QLearningAgent defaults = new QLearningAgent('O', 'X');
+            Sweep.Param alpha = Sweep.Param.parse("alpha", a.get("alpha", String.valueOf(defaults.getAlpha())), false);
+            Sweep.Param gamma = Sweep.Param.parse("gamma", a.get("gamma", String.valueOf(defaults.getGamma())), false);
+            Sweep.Param epsilon = Sweep.Param.parse("epsilon", a.get("epsilon", String.valueOf(defaults.getEpsilon())), false);
+            Sweep.Param decay = Sweep.Param.parse("decay", a.get("decay", String.valueOf(defaults.getEpsilonDecay())), true);
+            Sweep.Param floor = Sweep.Param.parse("eps-min", a.get("eps-min", String.valueOf(defaults.getEpsilonMin())), false);
+            long samples = a.getLong("samples", 0);
+            long seed = a.getLong("seed", 1);
+            long episodes = a.getLong("episodes", 50000);
+            TrainMode mode = TrainMode.fromCli(a.get("mode", "selfplay"));
+            if (!mode.episodic()) throw new IllegalArgumentException("--mode " + mode.cliName + " has no hyperparameters to sweep");
+            int threads = (int) a.getLong("threads", Runtime.getRuntime().availableProcessors());
+            long games = a.getLong("games", 10000);
+            int top = (int) a.getLong("top", 10);
+            String csv = a.get("csv", null);
+            String out = a.get("out", SWEEP_FILE);
+            boolean install = a.has("install");
+            a.rejectUnknown();
+
+            java.util.List<Sweep.Config> configs = samples > 0
+                    ? Sweep.random((int) samples, seed, alpha, gamma, epsilon, decay, floor)
+                    : Sweep.grid(alpha, gamma, epsilon, decay, floor);
+            System.out.printf("Sweeping %d configurations x %,d %s episodes on %d threads%n", configs.size(), episodes, mode.cliName, threads);
+            final long start = System.nanoTime();
+            final int[] finished = {0};
+            Sweep sweep = new Sweep(mode, episodes, games, threads);
+            java.util.List<Sweep.Result> results = sweep.run(configs, r -> {
+                synchronized (finished) {
+                    System.out.printf("[%d/%d] %s  strength=%.4f  %.2f s  vs random %s%n",
+                            ++finished[0], configs.size(), r.config, r.strength, r.seconds, r.vsRandom.summary());
+                }
+            });
+            System.out.printf("%nDone in %.1f s. Ranked by strength per training second:%n", (System.nanoTime() - start) / 1e9);
+            System.out.printf("%4s  %-66s %9s %9s %8s  %s%n", "rank", "configuration", "strength", "per sec", "seconds", "vs random");
+            for (int i = 0; i < Math.min(top, results.size()); i++) {
+                Sweep.Result r = results.get(i);
+                System.out.printf("%4d  %-66s %9.4f %9.4f %8.2f  %s%n",
+                        i + 1, r.config, r.strength, r.strengthPerSecond(), r.seconds, r.vsRandom.summary());
+            }
+            if (csv != null) {
+                try (PrintWriter w = new PrintWriter(new FileWriter(csv))) {
+                    w.println("rank,alpha,gamma,epsilon,decay,floor,episodes,seconds,strength,strength_per_sec,win,draw,loss");
+                    for (int i = 0; i < results.size(); i++) {
+                        Sweep.Result r = results.get(i);
+                        Sweep.Config c = r.config;
+                        w.printf(java.util.Locale.ROOT, "%d,%s,%s,%s,%s,%s,%d,%.4f,%.6f,%.6f,%d,%d,%d%n", i + 1, c.alpha, c.gamma, c.epsilon, c.decay,
+                                c.floor, episodes, r.seconds, r.strength, r.strengthPerSecond(), r.vsRandom.wins, r.vsRandom.draws, r.vsRandom.losses);
+                    }
+                }
+                System.out.println("Wrote " + csv);
+            }
+            Sweep.Result best = sweep.best(); // results.get(0), unless two tie exactly
+            Checkpointer.write(out, sweep.bestTable(), CHECKPOINT_KEEP);
+            System.out.println("Saved the best configuration's Q-table to " + out + " (" + best.config + ")");
+            if (install) {
+                Checkpointer.write(QTABLE_FILE, sweep.bestTable(), CHECKPOINT_KEEP);
+                System.out.println("Installed it as " + QTABLE_FILE + " for the GUI");
+            }
+        }
+
+        /** Serves a table or compiled policy on the loopback interface until the process is stopped. */
+        static void serve(Args a) throws Exception {
+            String in = a.get("in", QTABLE_FILE);
+            int port = (int) a.getLong("port", InferenceServer.DEFAULT_PORT);
+            long reportMs = a.getLong("report-ms", 10_000);
+            a.rejectUnknown();
+            InferenceServer server = InferenceServer.forFile(in);
+            port = server.start(port);
+            System.out.printf("Serving %s on http://127.0.0.1:%d (%s)%n",
+                    in, port, server.virtualThreads() ? "virtual threads" : "thread pool");
+            for (long last = 0; ; ) {
+                Thread.sleep(reportMs > 0 ? reportMs : Long.MAX_VALUE);
+                long n = server.requests();
+                if (n == last) continue;
+                last = n;
+                Latency l = server.latency();
+                System.out.printf("%,14d requests  p50 %.1f us  p99 %.1f us%n", n, l.percentile(0.50) / 1e3, l.percentile(0.99) / 1e3);
+            }
+        }
+
+        /**
+         * Load generator for the move service: --clients threads ask for random reachable
+         * boards (one per GET /move, or --batch per POST /moves) for --seconds. Without
+         * --port it starts a service on a free loopback port first.
+         */
+        static void loadgen(Args a) throws Exception {
+            boolean embedded = !a.has("port");
+            int port = (int) a.getLong("port", 0);
+            String in = a.get("in", QTABLE_FILE);
+            int clients = (int) a.getLong("clients", 16);
+            long seconds = a.getLong("seconds", 10);
+            int batch = (int) a.getLong("batch", 1);
+            a.rejectUnknown();
+            if (clients < 1) throw new IllegalArgumentException("--clients must be at least 1");
+            if (batch < 1 || batch > InferenceServer.MAX_BATCH) {
+                throw new IllegalArgumentException("--batch must be between 1 and " + InferenceServer.MAX_BATCH);
+            }
+            InferenceServer server = null;
+            if (embedded) {
+                server = InferenceServer.forFile(in);
+                port = server.start(0);
+                System.out.printf("Serving %s on http://127.0.0.1:%d (%s)%n",
+                        in, port, server.virtualThreads() ? "virtual threads" : "thread pool");
+            }
+            String[] boards = IntStream.of(reachableCodes(false)).mapToObj(InferenceServer::boardString).toArray(String[]::new);
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            URI base = URI.create("http://127.0.0.1:" + port);
+            Latency latency = new Latency();
+            LongAdder ok = new LongAdder(), failed = new LongAdder();
+            long start = System.nanoTime(), deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            for (int t = 0; t < clients; t++) {
+                pool.execute(() -> {
+                    Random rnd = ThreadLocalRandom.current();
+                    StringBuilder body = new StringBuilder(batch * 10);
+                    while (System.nanoTime() < deadline) {
+                        HttpRequest req;
+                        if (batch == 1) {
+                            req = HttpRequest.newBuilder(base.resolve("/move?board=" + boards[rnd.nextInt(boards.length)])).build();
+                        } else {
+                            body.setLength(0);
+                            for (int i = 0; i < batch; i++) body.append(boards[rnd.nextInt(boards.length)]).append('\n');
+                            req = HttpRequest.newBuilder(base.resolve("/moves"))
+                                    .POST(HttpRequest.BodyPublishers.ofString(body.toString())).build();
+                        }
+                        long sent = System.nanoTime();
+                        try {
+                            HttpResponse<String> r = client.send(req, HttpResponse.BodyHandlers.ofString());
+                            latency.record(System.nanoTime() - sent);
+                            if (r.statusCode() == 200) ok.increment(); else failed.increment();
+                        } catch (IOException ex) {
+                            failed.increment();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+            double secs = (System.nanoTime() - start) / 1e9;
+            long n = ok.sum();
+            System.out.printf("%,d requests of %d board%s from %d clients in %.1f s: %,.0f requests/s, %,.0f boards/s, %d failed%n",
+                    n, batch, batch == 1 ? "" : "s", clients, secs, n / secs, n * batch / secs, failed.sum());
+            System.out.printf("Client latency: p50 %.1f us  p99 %.1f us%n", latency.percentile(0.50) / 1e3, latency.percentile(0.99) / 1e3);
+            if (server != null) {
+                Latency l = server.latency();
+                System.out.printf("Server latency: p50 %.1f us  p99 %.1f us%n", l.percentile(0.50) / 1e3, l.percentile(0.99) / 1e3);
+                server.stop();
+            } else {
+                HttpResponse<String> r = client.send(HttpRequest.newBuilder(base.resolve("/stats")).build(), HttpResponse.BodyHandlers.ofString());
+                System.out.println("Server: " + r.body());
+            }
+        }
+
+        /**
+         * Trains a fresh table from a trajectory log, passing every recorded episode
+         * through the learning rule --epochs times, or with --inspect only summarizes
+         * the log (and prints its first --print episodes).
+         */
+        static void replay(Args a) throws Exception {
+            String dir = a.get("log", null);
+            String out = a.get("out", QTABLE_FILE);
+            int epochs = (int) a.getLong("epochs", 1);
+            int print = (int) a.getLong("print", 0);
+            boolean inspect = a.has("inspect");
+            QLearningAgent agent = new QLearningAgent('O', 'X');
+            agent.setHyperparameters(a.getDouble("alpha", agent.getAlpha()), a.getDouble("gamma", agent.getGamma()),
+                    agent.getEpsilon(), agent.getEpsilonDecay(), agent.getEpsilonMin());
+            if (a.has("symmetry")) agent.setCanonical(true);
+            agent.setLearning(new Learning(LearningRule.fromCli(a.get("learn", "onestep")), (int) a.getLong("n", 3),
+                    a.getDouble("lambda", 0.8), (int) a.getLong("replay", 0), (int) a.getLong("replay-batch", 32)));
+            a.rejectUnknown();
+            if (dir == null) throw new IllegalArgumentException("--log DIR is required");
+            if (epochs < 1) throw new IllegalArgumentException("--epochs must be at least 1");
+            java.util.List<Path> segments = TrajectoryLog.segments(Paths.get(dir));
+            if (segments.isEmpty()) throw new IllegalArgumentException("No trajectory log segments in " + dir);
+
+            if (inspect || print > 0) {
+                long bytes = 0, episodes = 0;
+                // transitions, X wins, O wins, episodes printed so far
+                final long[] t = new long[4];
+                for (Path seg : segments) {
+                    bytes += java.nio.file.Files.size(seg);
+                    episodes += TrajectoryLog.forEachEpisode(seg, (log, from, to) -> {
+                        char winner = TrajectoryLog.winner(log.get(from + 7));
+                        t[0] += (to - from) / TrajectoryLog.RECORD;
+                        if (winner == 'X') t[1]++; else if (winner == 'O') t[2]++;
+                        if (t[3]++ >= print) return;
+                        System.out.printf("episode %d (%s)%n", t[3], winner == ' ' ? "draw" : winner + " won");
+                        for (int p = from; p < to; p += TrajectoryLog.RECORD) {
+                            int sPrime = log.getShort(p + 2);
+                            System.out.printf("  %s  %s plays %d  r=%+d  -> %s%n", log.get(p + 5) == 0 ? "p0" : "p1",
+                                    InferenceServer.boardString(log.getShort(p)), log.get(p + 4), log.get(p + 6),
+                                    sPrime == TERMINAL ? "terminal" : InferenceServer.boardString(sPrime));
+                        }
+                    });
+                }
+                System.out.printf("%s: %d segment(s), %,d bytes, %,d episodes, %,d transitions; X/O/draw=%.3f/%.3f/%.3f%n",
+                        dir, segments.size(), bytes, episodes, t[0], t[1] / (double) episodes, t[2] / (double) episodes,
+                        (episodes - t[1] - t[2]) / (double) episodes);
+                if (inspect) return;
+            }
+
+            System.out.println("Replaying " + segments.size() + " segment(s) from " + dir + " x" + epochs + "; "
+                    + agent.describeHyperparameters());
+            Worker worker = agent.newWorker(new Random());
+            long start = System.nanoTime(), episodes = 0;
+            for (int e = 1; e <= epochs; e++) {
+                long before = episodes;
+                for (Path seg : segments) {
+                    episodes += TrajectoryLog.forEachEpisode(seg, (log, from, to) -> agent.replayEpisode(worker, log, from, to));
+                }
+                System.out.printf("epoch %3d  %,12d episodes  states=%d  %.2f s%n",
+                        e, episodes - before, agent.tableSize(), (System.nanoTime() - start) / 1e9);
+            }
+            worker.stats.flush();
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Done: %,d episodes in %.2f s (%,.0f eps/s); states=%d%n", episodes, secs, episodes / secs, agent.tableSize());
+            printGap(agent);
+            Checkpointer.write(out, agent.publishSnapshot().encode(), CHECKPOINT_KEEP);
+            System.out.println("Saved Q-table to " + out);
+        }
+
+        static void gap(Args a) throws Exception {
+            String in = a.get("in", QTABLE_FILE);
+            a.rejectUnknown();
+            QLearningAgent agent = new QLearningAgent('O', 'X');
+            agent.loadFrom(in);
+            printGap(agent);
+        }
+
+        static void printGap(QLearningAgent agent) {
+            Solver.Gap gap = Solver.get().optimalityGap(agent);
+            System.out.printf("Optimality gap: %d/%d positions suboptimal (%.2f%%), %d losing moves%n",
+                    gap.suboptimal, gap.states, gap.rate() * 100, gap.losing);
+        }
+
+        /** Rewrites a table (typically a legacy serialized one) in the binary format. */
+        static void convert(Args a) throws Exception {
+            String in = a.get("in", LEGACY_QTABLE_FILE);
+            String out = a.get("out", QTABLE_FILE);
+            a.rejectUnknown();
+            if (!new File(in).exists()) throw new IllegalArgumentException("No such file: " + in);
+            QLearningAgent agent = new QLearningAgent('O', 'X');
+            agent.loadFrom(in);
+            agent.saveTo(out);
+            System.out.printf("Converted %s (%,d bytes) -> %s (%,d bytes), %d states%n",
+                    in, new File(in).length(), out, new File(out).length(), agent.tableSize());
+        }
+
+        /** Compiles a table's greedy policy (with --ranks N ranked moves per state) into a policy file. */
+        static void freeze(Args a) throws Exception {
+            String in = a.get("in", QTABLE_FILE);
+            String out = a.get("out", POLICY_FILE);
+            int ranks = (int) a.getLong("ranks", 1);
+            a.rejectUnknown();
+            if (!new File(in).exists()) throw new IllegalArgumentException("No such file: " + in);
+            QLearningAgent agent = new QLearningAgent('O', 'X');
+            agent.loadFrom(in);
+            CompiledPolicy policy = CompiledPolicy.compile(agent.publishSnapshot(), ranks);
+            policy.saveTo(out);
+            System.out.printf("Froze %s (%d states, %,d bytes) -> %s (%d ranked moves per state, %,d bytes)%n",
+                    in, agent.tableSize(), new File(in).length(), out, ranks, new File(out).length());
+        }
+
+        static void train(Args a) throws Exception {
+            Geometry board = Geometry.parse(a.get("board", Geometry.CLASSIC.toString()));
+            if (a.has("net")) { trainNet(a, board); return; }
+            if (!board.isClassic()) { trainBoard(a, board); return; }
+            long episodes = a.getLong("episodes", 50000);
+            TrainMode mode = TrainMode.fromCli(a.get("mode", "selfplay"));
+            int threads = (int) a.getLong("threads", Runtime.getRuntime().availableProcessors());
+            long reportMs = a.getLong("report-ms", 1000);
+            String out = a.get("out", QTABLE_FILE);
+
+            QLearningAgent agent = new QLearningAgent('O', 'X');
+            if (a.has("in")) agent.loadFrom(a.get("in", null));
+            agent.setHyperparameters(a.getDouble("alpha", agent.getAlpha()), a.getDouble("gamma", agent.getGamma()),
+                    a.getDouble("epsilon", agent.getEpsilon()), a.getDouble("decay", agent.getEpsilonDecay()),
+                    a.getDouble("eps-min", agent.getEpsilonMin()));
+            if (a.has("symmetry")) agent.setCanonical(true);
+            agent.setSolverEpsilon(a.getDouble("solver-eps", 0.1));
+            agent.setLearning(new Learning(LearningRule.fromCli(a.get("learn", "onestep")), (int) a.getLong("n", 3),
+                    a.getDouble("lambda", 0.8), (int) a.getLong("replay", 0), (int) a.getLong("replay-batch", 32)));
+            boolean jmx = a.has("jmx");
+            String statsCsv = a.get("stats-csv", null);
+            Checkpointer checkpointer = new Checkpointer((int) a.getLong("keep", CHECKPOINT_KEEP));
+            Checkpointer.Source source = () -> agent.publishSnapshot().encode();
+            long checkpointMs = a.getLong("checkpoint-ms", 0);
+            int sweeps = (int) a.getLong("sweeps", 100);
+            double threshold = a.getDouble("threshold", 1e-9);
+            boolean synchronous = a.has("synchronous");
+            String record = a.get("record", null);
+            long segmentMb = a.getLong("segment-mb", TrajectoryLog.DEFAULT_SEGMENT_BYTES >> 20);
+            Convergence.Criteria d = Convergence.Criteria.DEFAULT;
+            Convergence.Criteria criteria = !a.has("until-stable") ? null : new Convergence.Criteria(
+                    (int) a.getLong("window", d.window), a.getDouble("max-dq", d.maxDelta), a.getDouble("mean-dq", d.meanDelta),
+                    a.getDouble("policy-change", d.policyChange), (int) a.getLong("patience", d.patience), (int) a.getLong("probes", d.probes));
+            a.rejectUnknown();
+            if (record != null && !mode.episodic()) throw new IllegalArgumentException("--record needs an episodic --mode");
+            if (criteria != null && !mode.episodic()) throw new IllegalArgumentException("--until-stable needs an episodic --mode");
+            TrajectoryLog.Writer log = (record == null) ? null : new TrajectoryLog.Writer(Paths.get(record), segmentMb << 20);
+            agent.setRecording(log);
+            if (jmx || statsCsv != null) agent.stats().startSampling(reportMs, statsCsv);
+            checkpointer.startPeriodic(source, out, checkpointMs);
+
+            if (!mode.episodic()) {
+                ValueIteration vi = new ValueIteration(agent, threads, synchronous);
+                System.out.println("Value iteration over " + vi.states() + " states on " + threads + " threads ("
+                        + (synchronous ? "synchronous" : "Gauss-Seidel") + "); " + agent.describeHyperparameters());
+                final long start = System.nanoTime();
+                int n = vi.run(sweeps, threshold, (delta, sweep) ->
+                        System.out.printf("sweep %4d  max dQ=%.3e  %.3f s%n", sweep, delta, (System.nanoTime() - start) / 1e9));
+                System.out.printf("Done: %d sweeps in %.3f s; states=%d%n", n, (System.nanoTime() - start) / 1e9, agent.tableSize());
+                agent.stats().stopSampling();
+                printGap(agent);
+                checkpointer.stopPeriodic();
+                checkpointer.submit(source, out).join();
+                checkpointer.shutdown(0);
+                System.out.println("Saved Q-table to " + out);
+                return;
+            }
+
+            if (criteria != null) {
+                trainUntilStable(agent, mode, threads, episodes, criteria);
+                if (log != null) {
+                    log.close();
+                    System.out.printf("Recorded %,d episodes (%,d bytes) in %d new segment(s) under %s%n",
+                            log.episodes(), log.bytes(), log.segments(), record);
+                }
+                agent.stats().stopSampling();
+                printGap(agent);
+                checkpointer.stopPeriodic();
+                checkpointer.submit(source, out).join();
+                checkpointer.shutdown(0);
+                System.out.println("Saved Q-table to " + out);
+                return;
+            }
+
+            System.out.println("Training " + episodes + " " + mode.cliName + " episodes on " + threads + " threads; "
+                    + agent.describeHyperparameters());
+            ParallelTrainer trainer = new ParallelTrainer(agent, mode, threads);
+            final long start = System.nanoTime();
+            // last report: time, episodes, X wins, O wins
+            final long[] last = {start, 0, 0, 0};
+            trainer.run(episodes, done -> {
+                long now = System.nanoTime();
+                if (now - last[0] < reportMs * 1_000_000L && done < episodes) return;
+                long xw = trainer.xWins(), ow = trainer.oWins();
+                long window = Math.max(1, done - last[1]);
+                System.out.printf("%,12d eps (%5.1f%%)  %,10.0f eps/s  epsilon=%.4f  states=%d  window X/O/draw=%.3f/%.3f/%.3f%n",
+                        done, done * 100.0 / episodes, (done - last[1]) / ((now - last[0]) / 1e9),
+                        agent.getEpsilon(), agent.tableSize(),
+                        (xw - last[2]) / (double) window, (ow - last[3]) / (double) window,
+                        (window - (xw - last[2]) - (ow - last[3])) / (double) window);
+                last[0] = now; last[1] = done; last[2] = xw; last[3] = ow;
+            });
+            double secs = (System.nanoTime() - start) / 1e9;
+            long done = trainer.completed();
+            System.out.printf("Done: %,d episodes in %.2f s (%,.0f eps/s); states=%d; overall X/O/draw=%.3f/%.3f/%.3f%n",
+                    done, secs, done / secs, agent.tableSize(),
+                    trainer.xWins() / (double) done, trainer.oWins() / (double) done, trainer.draws() / (double) done);
+            if (log != null) {
+                log.close();
+                System.out.printf("Recorded %,d episodes (%,d bytes) in %d new segment(s) under %s%n",
+                        log.episodes(), log.bytes(), log.segments(), record);
+            }
+            agent.stats().stopSampling();
+            printGap(agent);
+            checkpointer.stopPeriodic();
+            checkpointer.submit(source, out).join();
+            checkpointer.shutdown(0);
+            System.out.println("Saved Q-table to " + out);
+        }
+
+        /** Trains in windows until Convergence reports the table stable, with --episodes as the budget. */
+        static void trainUntilStable(QLearningAgent agent, TrainMode mode, int threads, long budget,
+                                     Convergence.Criteria criteria) throws InterruptedException {
+            System.out.println("Training " + mode.cliName + " until stable (at most " + budget + " episodes) on " + threads
+                    + " threads; " + criteria + "; " + agent.describeHyperparameters());
+            Convergence c = new Convergence(agent, mode, threads, criteria);
+            long start = System.nanoTime();
+            Convergence.Window last = c.run(budget, done -> {}, w ->
+                    System.out.printf("%,12d eps  %s  stable %d/%d%n", w.episodes, w.summary(), w.stable, criteria.patience));
+            double secs = (System.nanoTime() - start) / 1e9;
+            long done = c.completed();
+            System.out.printf("%s after %,d episodes in %.2f s (%,.0f eps/s); states=%d%n",
+                    last != null && last.converged ? "Converged" : "Budget reached", done, secs, done / secs, agent.tableSize());
+            if (done < budget) {
+                System.out.printf("Saved %,d of %,d budgeted episodes, about %.2f s at this rate%n", budget - done, budget, (budget - done) * secs / done);
+            }
+        }
+
+        /** train on a board other than 3x3: one thread, bounded hashed table. */
+        static void trainBoard(Args a, Geometry board) throws Exception {
+            for (String opt : new String[]{"threads", "symmetry", "solver-eps", "jmx", "stats-csv", "learn", "n", "lambda", "replay", "replay-batch",
+                    "sweeps", "threshold", "synchronous", "batch"}) {
+                if (a.has(opt)) throw new IllegalArgumentException("--" + opt + " needs the 3x3 board");
+            }
+            long episodes = a.getLong("episodes", 50000);
+            TrainMode mode = TrainMode.fromCli(a.get("mode", "selfplay"));
+            if (!MnkAgent.supports(mode)) throw new IllegalArgumentException("--mode " + mode.cliName + " needs the 3x3 board");
+            long maxStates = a.getLong("max-states", MAX_STATES);
+            if (maxStates < 1 || maxStates > Integer.MAX_VALUE) throw new IllegalArgumentException("--max-states out of range: " + maxStates);
+            long reportMs = a.getLong("report-ms", 1000);
+            String out = a.get("out", board.tableFile());
+
+            MnkAgent agent = new MnkAgent(board, (int) maxStates);
+            if (a.has("in")) agent.loadFrom(a.get("in", null));
+            agent.setHyperparameters(a.getDouble("alpha", agent.getAlpha()), a.getDouble("gamma", agent.getGamma()),
+                    a.getDouble("epsilon", agent.getEpsilon()), a.getDouble("decay", agent.getEpsilonDecay()),
+                    a.getDouble("eps-min", agent.getEpsilonMin()));
+            Checkpointer checkpointer = new Checkpointer((int) a.getLong("keep", CHECKPOINT_KEEP));
+            long checkpointMs = a.getLong("checkpoint-ms", 0);
+            a.rejectUnknown();
+            checkpointer.startPeriodic(agent::encode, out, checkpointMs);
+
+            System.out.println("Training " + episodes + " " + mode.cliName + " episodes; " + agent.describeHyperparameters());
+            final long start = System.nanoTime();
+            long last = start, lastDone = 0, xWins = 0, oWins = 0;
+            for (long done = 1; done <= episodes; done++) {
+                char winner = agent.trainOneEpisode(mode);
+                if (winner == 'X') xWins++; else if (winner == 'O') oWins++;
+                long now = System.nanoTime();
+                if (now - last < reportMs * 1_000_000L && done < episodes) continue;
+                System.out.printf("%,12d eps (%5.1f%%)  %,10.0f eps/s  epsilon=%.4f  states=%d  evicted=%d%n",
+                        done, done * 100.0 / episodes, (done - lastDone) / ((now - last) / 1e9),
+                        agent.getEpsilon(), agent.tableSize(), agent.evictions());
+                last = now; lastDone = done;
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Done: %,d episodes in %.2f s (%,.0f eps/s); states=%d (%,d bytes); evicted=%,d; X/O/draw=%.3f/%.3f/%.3f%n",
+                    episodes, secs, episodes / secs, agent.tableSize(), agent.tableBytes(), agent.evictions(),
+                    xWins / (double) episodes, oWins / (double) episodes, (episodes - xWins - oWins) / (double) episodes);
+            checkpointer.stopPeriodic();
+            checkpointer.submit(agent::encode, out).join();
+            checkpointer.shutdown(0);
+            System.out.println("Saved Q-table to " + out);
+        }
+
+        /** train --net: a QNetAgent on any board, one thread. */
+        static void trainNet(Args a, Geometry board) throws Exception {
+            for (String opt : new String[]{"threads", "symmetry", "solver-eps", "jmx", "stats-csv", "learn", "n", "lambda", "replay", "replay-batch",
+                    "sweeps", "threshold", "synchronous", "max-states"}) {
+                if (a.has(opt)) throw new IllegalArgumentException("--" + opt + " does not apply to --net");
+            }
+            String net = a.get("net", "linear");
+            int hidden;
+            try { hidden = net.equals("linear") ? 0 : Integer.parseInt(net); }
+            catch (NumberFormatException ex) { throw new IllegalArgumentException("--net must be linear or a hidden-layer width: " + net); }
+            int batch = (int) a.getLong("batch", NET_BATCH);
+            long episodes = a.getLong("episodes", 50000);
+            TrainMode mode = TrainMode.fromCli(a.get("mode", "selfplay"));
+            if (!QNetAgent.supports(mode)) throw new IllegalArgumentException("--mode " + mode.cliName + " does not apply to --net");
+            long reportMs = a.getLong("report-ms", 1000);
+            String out = a.get("out", board.netFile());
+
+            QNetAgent agent = new QNetAgent(board, hidden, batch);
+            if (a.has("in")) agent.loadFrom(a.get("in", null));
+            agent.setHyperparameters(a.getDouble("alpha", agent.getAlpha()), a.getDouble("gamma", agent.getGamma()),
+                    a.getDouble("epsilon", agent.getEpsilon()), a.getDouble("decay", agent.getEpsilonDecay()),
+                    a.getDouble("eps-min", agent.getEpsilonMin()));
+            Checkpointer checkpointer = new Checkpointer((int) a.getLong("keep", CHECKPOINT_KEEP));
+            long checkpointMs = a.getLong("checkpoint-ms", 0);
+            a.rejectUnknown();
+            checkpointer.startPeriodic(agent::encode, out, checkpointMs);
+
+            System.out.println("Training " + episodes + " " + mode.cliName + " episodes; " + agent.describeHyperparameters());
+            final long start = System.nanoTime();
+            long last = start, lastDone = 0, lastUpdates = 0, xWins = 0, oWins = 0;
+            for (long done = 1; done <= episodes; done++) {
+                char winner = agent.trainOneEpisode(mode);
+                if (winner == 'X') xWins++; else if (winner == 'O') oWins++;
+                long now = System.nanoTime();
+                if (now - last < reportMs * 1_000_000L && done < episodes) continue;
+                long updates = agent.updates();
+                System.out.printf("%,12d eps (%5.1f%%)  %,10.0f eps/s  %,10.0f updates/s  epsilon=%.4f%n",
+                        done, done * 100.0 / episodes, (done - lastDone) / ((now - last) / 1e9),
+                        (updates - lastUpdates) / ((now - last) / 1e9), agent.getEpsilon());
+                last = now; lastDone = done; lastUpdates = updates;
+            }
+            agent.flush();
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Done: %,d episodes in %.2f s (%,.0f eps/s); %,d parameters (%,d bytes); X/O/draw=%.3f/%.3f/%.3f%n",
+                    episodes, secs, episodes / secs, agent.parameters(), agent.footprintBytes(),
+                    xWins / (double) episodes, oWins / (double) episodes, (episodes - xWins - oWins) / (double) episodes);
+            if (board.isClassic()) {
+                Tournament.Tally t = new Tournament(Tournament.of(agent), Tournament.RANDOM, 1).run(10_000, Long.MAX_VALUE, tally -> { });
+                System.out.println("vs random: " + t.summary());
+            }
+            checkpointer.stopPeriodic();
+            checkpointer.submit(agent::encode, out).join();
+            checkpointer.shutdown(0);
+            System.out.println("Saved Q-network to " + out);
+        }
+    }
+
+    // ========= Benchmarks =========
+    /**
+     * Micro-benchmarks for the agent and game hot paths: {@code java TTT_RL bench}.
+     * Follows the JMH model (warmup then measured iterations, results sunk so the JIT
+     * cannot drop them, per-op allocation like {@code -prof gc}) but needs no build.
+     * Each benchmark runs against empty, briefly trained and fully populated tables,
+     * and each gets its own freshly built table, so what one benchmark writes (training,
+     * updates, first visits, loads) never shows up in another's numbers and results do
+     * not depend on benchmark order or --filter.
+     */
+    static final class Bench {
+        /** One benchmark body; performs {@code reps} operations and returns something to sink. */
+        interface Op { long run(int reps) throws Exception; }
+
+        static final class Result {
+            final String name, table;
+            final double opsPerSec, error, allocPerOp;
+            Result(String name, String table, double opsPerSec, double error, double allocPerOp) {
+                this.name = name; this.table = table; this.opsPerSec = opsPerSec; this.error = error; this.allocPerOp = allocPerOp;
+            }
+            String key() { return name + "/" + table; }
+        }
+
+        static volatile long sink;
+
+        static boolean run(Args a) throws Exception {
+            String filter = a.get("filter", "");
+            String[] tables = a.get("tables", "empty,trained,full").split(",");
+            int warmup = (int) a.getLong("warmup", 3);
+            int iterations = (int) a.getLong("iterations", 5);
+            long iterMs = a.getLong("iter-ms", 500);
+            String out = a.get("out", null);
+            String baseline = a.get("baseline", null);
+            double tolerance = a.getDouble("tolerance", 10);
+            a.rejectUnknown();
+
+            java.util.List<Result> results = new java.util.ArrayList<>();
+            System.out.printf("%-28s %-8s %16s %12s %14s%n", "benchmark", "table", "ops/s", "error", "B/op");
+            for (String table : tables) {
+                for (Map.Entry<String, Op> e : benchmarks(table.trim()).entrySet()) {
+                    if (!e.getKey().contains(filter)) continue;
+                    Result r = measure(e.getKey(), table.trim(), e.getValue(), warmup, iterations, iterMs);
+                    System.out.printf("%-28s %-8s %,16.0f %,12.0f %14.1f%n", r.name, r.table, r.opsPerSec, r.error, r.allocPerOp);
+                    results.add(r);
+                }
+            }
+            if (out != null) write(results, out);
+            return baseline == null || compare(results, baseline, tolerance);
+        }
+
+        static QLearningAgent agentFor(String table) {
+            QLearningAgent agent = new QLearningAgent('O', 'X');
+            switch (table) {
+                case "empty":
+                    break;
+                case "trained":
+                    for (int i = 0; i < 2000; i++) agent.trainSelfPlaySmartOneEpisode();
+                    break;
+                case "full": {
+                    Random r = new Random(1);
+                    for (int c : reachableCodes(true)) {
+                        agent.ensureState(c);
+                        for (int m = DenseQTable.LEGAL[c]; m != 0; m &= m - 1) {
+                            agent.q.values[c * DenseQTable.ACTIONS + Integer.numberOfTrailingZeros(m)] = r.nextDouble() * 2 - 1;
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown table size: " + table);
+            }
+            return agent;
+        }
+
+        static Map<String, Op> benchmarks(String table) throws IOException {
+            final int[] states = reachableCodes(false);
+            final int[][] boards = new int[states.length][];
+            for (int i = 0; i < states.length; i++) boards[i] = new int[]{decodeX(states[i]), decodeO(states[i])};
+            final File file = File.createTempFile("ttt-bench", ".bin");
+            file.deleteOnExit();
+            agentFor(table).saveTo(file.getPath());
+
+            Map<String, Op> ops = new java.util.LinkedHashMap<>();
+            final QLearningAgent selfPlay = agentFor(table);
+            final double epsilon = selfPlay.getEpsilon();
+            ops.put("trainSelfPlaySmartOneEpisode", reps -> {
+                for (int i = 0; i < reps; i++) selfPlay.trainSelfPlaySmartOneEpisode();
+                selfPlay.decayEpsilon(epsilon, 0); // keep exploration steady across iterations
+                return selfPlay.tableSize();
+            });
+            final QLearningAgent legacy = agentFor(table);
+            ops.put("trainOneEpisode", reps -> {
+                for (int i = 0; i < reps; i++) legacy.trainOneEpisode();
+                legacy.decayEpsilon(epsilon, 0);
+                return legacy.tableSize();
+            });
+            // chooseAction marks the states it sees as visited, so each variant gets its own table
+            final QLearningAgent greedy = agentFor(table);
+            ops.put("chooseAction.greedy", new Op() {
+                int k;
+                public long run(int reps) {
+                    long acc = 0;
+                    for (int i = 0; i < reps; i++) { acc += greedy.chooseAction(states[k], 0.0); if (++k == states.length) k = 0; }
+                    return acc;
+                }
+            });
+            final QLearningAgent exploring = agentFor(table);
+            ops.put("chooseAction.epsilon", new Op() {
+                int k;
+                public long run(int reps) {
+                    long acc = 0;
+                    for (int i = 0; i < reps; i++) { acc += exploring.chooseAction(states[k], 0.2); if (++k == states.length) k = 0; }
+                    return acc;
+                }
+            });
+            final CompiledPolicy policy = CompiledPolicy.compile(agentFor(table).publishSnapshot(), 1);
+            ops.put("compiledPolicy.best", new Op() {
+                int k;
+                public long run(int reps) {
+                    long acc = 0;
+                    for (int i = 0; i < reps; i++) { acc += policy.best(states[k]); if (++k == states.length) k = 0; }
+                    return acc;
+                }
+            });
+            final Geometry big = Geometry.parse("6x7x4");
+            final long[][] bigBoards = new long[4096][];
+            Random boardRnd = new Random(2);
+            for (int i = 0; i < bigBoards.length; i++) {
+                long x = 0, o = 0;
+                for (int ply = boardRnd.nextInt(big.cells); ply > 0; ply--) {
+                    long legal = big.legal(x, o);
+                    int c = nthLegal(legal, boardRnd.nextInt(Long.bitCount(legal)));
+                    if (Long.bitCount(x) == Long.bitCount(o)) x |= 1L << c; else o |= 1L << c;
+                }
+                bigBoards[i] = new long[]{x, o};
+            }
+            for (int hidden : new int[]{0, 64}) {
+                final QNetAgent net = new QNetAgent(big, hidden, 32);
+                final float[] qs = new float[big.cells];
+                final String kind = hidden == 0 ? "linear" : "mlp" + hidden;
+                ops.put("qnet.evaluate(" + kind + " 6x7)", new Op() {
+                    int k;
+                    public long run(int reps) {
+                        long acc = 0;
+                        for (int i = 0; i < reps; i++) {
+                            long[] b = bigBoards[k];
+                            if (++k == bigBoards.length) k = 0;
+                            net.evaluate(b[0], b[1], qs);
+                            acc += Float.floatToRawIntBits(qs[i % qs.length]);
+                        }
+                        return acc;
+                    }
+                });
+                ops.put("qnet.train(" + kind + " 6x7)", reps -> {
+                    for (int i = 0; i < reps; i++) net.trainOneEpisode(TrainMode.SELF_PLAY);
+                    return net.updates();
+                });
+            }
+            final Mcts mcts = new Mcts(Geometry.CLASSIC, 100, 0, 1);
+            final Random mctsRnd = new Random(1);
+            ops.put("mcts.move(100 rollouts)", new Op() {
+                int k;
+                public long run(int reps) {
+                    long acc = 0;
+                    for (int i = 0; i < reps; i++) {
+                        int[] b = boards[k];
+                        if (++k == boards.length) k = 0;
+                        acc += mcts.chooseMove(b[0], b[1], mctsRnd);
+                    }
+                    return acc;
+                }
+            });
+            final QLearningAgent updated = agentFor(table);
+            ops.put("updateQ", new Op() {
+                int k;
+                public long run(int reps) {
+                    for (int i = 0; i < reps; i++) {
+                        int s = states[k];
+                        if (++k == states.length) k = 0;
+                        updated.updateQ(s, Integer.numberOfTrailingZeros(DenseQTable.LEGAL[s]), 0.0, states[k]);
+                    }
+                    return k;
+                }
+            });
+            ops.put("winnerOf+isDraw", new Op() {
+                int k;
+                public long run(int reps) {
+                    long acc = 0;
+                    for (int i = 0; i < reps; i++) {
+                        int[] b = boards[k];
+                        if (++k == boards.length) k = 0;
+                        acc += winnerOf(b[0], b[1]) + (isDraw(b[0], b[1]) ? 1 : 0);
+                    }
+                    return acc;
+                }
+            });
+            // saveTo writes its own file, so loadFrom always reads the untouched table
+            final QLearningAgent saved = agentFor(table);
+            final File saveFile = File.createTempFile("ttt-bench", ".bin");
+            saveFile.deleteOnExit();
+            ops.put("saveTo", reps -> {
+                for (int i = 0; i < reps; i++) saved.saveTo(saveFile.getPath());
+                return saveFile.length();
+            });
+            final QLearningAgent loaded = agentFor(table);
+            ops.put("loadFrom", reps -> {
+                for (int i = 0; i < reps; i++) loaded.loadFrom(file.getPath());
+                return loaded.tableSize();
+            });
+            return ops;
+        }
+
+        static Result measure(String name, String table, Op op, int warmup, int iterations, long iterMs) throws Exception {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            // size the batch so one call takes roughly 1ms, keeping timer overhead negligible
+            int reps = 1;
+            for (long t0 = System.nanoTime(); ; reps *= 2, t0 = System.nanoTime()) {
+                sink += op.run(reps);
+                if (System.nanoTime() - t0 > 1_000_000L || reps >= (1 << 24)) break;
+            }
+            double[] rates = new double[iterations];
+            long allocBytes = 0, allocOps = 0;
+            for (int it = -warmup; it < iterations; it++) {
+                long ops = 0, bytes0 = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime(), deadline = start + iterMs * 1_000_000L, now;
+                do { sink += op.run(reps); ops += reps; } while ((now = System.nanoTime()) < deadline);
+                if (it < 0) continue;
+                rates[it] = ops / ((now - start) / 1e9);
+                allocBytes += threads.getCurrentThreadAllocatedBytes() - bytes0;
+                allocOps += ops;
+            }
+            double mean = 0, var = 0;
+            for (double r : rates) mean += r / rates.length;
+            for (double r : rates) var += (r - mean) * (r - mean);
+            double err = rates.length > 1 ? Math.sqrt(var / (rates.length - 1)) : 0;
+            return new Result(name, table, mean, err, allocBytes / (double) Math.max(1, allocOps));
+        }
+
+        static void write(java.util.List<Result> results, String path) throws IOException {
+            try (PrintWriter w = new PrintWriter(new FileWriter(path))) {
+                if (path.endsWith(".json")) {
+                    w.println("[");
+                    for (int i = 0; i < results.size(); i++) {
+                        Result r = results.get(i);
+                        w.printf(java.util.Locale.ROOT,
+                                "  {\"benchmark\": \"%s\", \"table\": \"%s\", \"opsPerSec\": %.3f, \"error\": %.3f, \"allocBytesPerOp\": %.3f}%s%n",
+                                r.name, r.table, r.opsPerSec, r.error, r.allocPerOp, i + 1 < results.size() ? "," : "");
+                    }
+                    w.println("]");
+                } else {
+                    w.println("benchmark,table,ops_per_sec,error,alloc_bytes_per_op");
+                    for (Result r : results) {
+                        w.printf(java.util.Locale.ROOT, "%s,%s,%.3f,%.3f,%.3f%n", r.name, r.table, r.opsPerSec, r.error, r.allocPerOp);
+                    }
+                }
+            }
+            System.out.println("Results written to " + path);
+        }
+
+        /** Prints the change against a baseline CSV; false if any benchmark slowed down beyond the tolerance. */
+        static boolean compare(java.util.List<Result> results, String path, double tolerancePct) throws IOException {
+            Map<String, Double> base = new HashMap<>();
+            try (BufferedReader r = new BufferedReader(new FileReader(path))) {
+                String line = r.readLine(); // header
+                while ((line = r.readLine()) != null) {
+                    String[] f = line.split(",");
+                    if (f.length >= 3) base.put(f[0] + "/" + f[1], Double.parseDouble(f[2]));
+                }
+            }
+            boolean ok = true;
+            System.out.println("Compared with " + path + ":");
+            for (Result res : results) {
+                Double before = base.get(res.key());
+                if (before == null) { System.out.printf("  %-38s (new)%n", res.key()); continue; }
+                double change = (res.opsPerSec - before) * 100.0 / before;
+                boolean regressed = change < -tolerancePct;
+                ok &= !regressed;
+                System.out.printf("  %-38s %+7.1f%%%s%n", res.key(), change, regressed ? "  REGRESSION" : "");
+            }
+            return ok;
+        }
+    }
+
+    /** Minimal {@code --key value} / {@code --flag} parser for the headless commands. */
+    static final class Args {
+        private final Map<String, String> values = new HashMap<>();
+        private final java.util.Set<String> used = new java.util.HashSet<>();
+
+        Args(String[] args, int from) {
+            for (int i = from; i < args.length; i++) {
+                if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                String key = args[i].substring(2);
+                boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+                values.put(key, hasValue ? args[++i] : "");
+            }
+        }
+
+        boolean has(String key) { used.add(key); return values.containsKey(key); }
+
+        String get(String key, String def) {
+            used.add(key);
+            String v = values.get(key);
+            return (v == null || v.isEmpty()) ? def : v;
+        }
+
+        long getLong(String key, long def) {
+            String v = get(key, null);
+            if (v == null) return def;
+            try { return Long.parseLong(v.replace("_", "")); }
+            catch (NumberFormatException ex) { throw new IllegalArgumentException("--" + key + " expects an integer, got " + v); }
+        }
+
+        double getDouble(String key, double def) {
+            String v = get(key, null);
+            if (v == null) return def;
+            try { return Double.parseDouble(v); }
+            catch (NumberFormatException ex) { throw new IllegalArgumentException("--" + key + " expects a number, got " + v); }
+        }
+
+        void rejectUnknown() {
+            for (String k : values.keySet()) {
+                if (!used.contains(k)) throw new IllegalArgumentException("Unknown option: --" + k);
             }
         }
     }
 
     public static void main(String[] args) {
+        if (args.length > 0) { Headless.main(args); return; }
         SwingUtilities.invokeLater(() -> {
             try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored) {}
             new TTT_RL();